@@ -0,0 +1,317 @@
+/**
+ * Copyright 2013 George C. Hawkins
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.betaengine.smartconfig.device.decoder;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Random;
+
+// Benchmarks for the decoder - per frame throughput of Analyzer, per frame cost of LengthDecoder
+// and solve latency of Solver. Each benchmark reports the mean time per operation and the bytes
+// allocated per operation (as measured by the JVM's per-thread allocation counter). All input is
+// generated up front from fixed seeds so the results are reproducible.
+//
+// A benchmark is only run if its name contains the filter given as the first argument, if any.
+public class DecoderBenchmark
+{
+    private final static int WARMUP_ITERATIONS = 5;
+    private final static int MEASUREMENT_ITERATIONS = 10;
+    private final static long SEED = 1;
+
+    private final static int[] LINK_COUNTS = { 10, 1000, 10000 };
+    private final static double[] NOISE_LEVELS = { 0, 2, 10 };
+    private final static int[] VALUE_LENGTHS = { 4, 16, 32 };
+    private final static double[] LOSS_RATES = { 0, 0.05, 0.2 };
+
+    private final com.sun.management.ThreadMXBean threads =
+        (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+
+    private final String filter;
+
+    public DecoderBenchmark(String filter)
+    {
+        this.filter = filter;
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        DecoderBenchmark benchmark = new DecoderBenchmark(args.length > 0 ? args[0] : "");
+
+        benchmark.runAnalyzerBenchmarks();
+        benchmark.runLengthDecoderBenchmarks();
+        benchmark.runSolverBenchmarks();
+    }
+
+    private void runAnalyzerBenchmarks() throws Exception
+    {
+        for (int linkCount : LINK_COUNTS)
+        {
+            for (double noise : NOISE_LEVELS)
+            {
+                final Corpus corpus = new Corpus();
+                TrafficGenerator generator = new TrafficGenerator(SEED);
+
+                // A tenth of the links carry Smart Config traffic.
+                generator.setSessionCount(Math.max(1, linkCount / 10));
+                generator.setNoiseLinkCount(linkCount);
+                generator.setNoise(noise);
+                generator.setLoss(0.05);
+                generator.generate(corpus);
+
+                run("analyzer.process links=" + linkCount + " noise=" + noise, corpus.size, new Operation()
+                {
+                    @Override
+                    public long run()
+                    {
+                        return corpus.replay(new Analyzer(new CountingListener()));
+                    }
+                });
+            }
+        }
+    }
+
+    // A single link, i.e. a single LengthDecoder, fed a long run of Smart Config traffic.
+    private void runLengthDecoderBenchmarks()
+    {
+        for (int valueLength : VALUE_LENGTHS)
+        {
+            final int[] lengths = createRounds(valueLength, 200, 0.05);
+
+            run("lengthDecoder.add length=" + valueLength, lengths.length, new Operation()
+            {
+                @Override
+                public long run()
+                {
+                    LengthDecoder decoder = new LengthDecoder(0, new IntRingBuffer(1));
+                    long solved = 0;
+
+                    for (int length : lengths)
+                    {
+                        solved += decoder.add(length) ? 1 : 0;
+                    }
+
+                    return solved;
+                }
+            });
+        }
+    }
+
+    // The time taken to solve a value from the point that the first encoded data is seen.
+    private void runSolverBenchmarks()
+    {
+        final int solvesPerIteration = 1000;
+
+        for (int valueLength : VALUE_LENGTHS)
+        {
+            for (double loss : LOSS_RATES)
+            {
+                final EncodedData[][] rounds = new EncodedData[solvesPerIteration][];
+                Random random = new Random(SEED);
+
+                for (int i = 0; i < solvesPerIteration; i++)
+                {
+                    rounds[i] = createEncodedData(random, valueLength, 20, loss);
+                }
+
+                final Solver solver = new Solver("benchmark");
+                final int[] roundsNeeded = new int[1];
+
+                run("solver.process length=" + valueLength + " loss=" + loss, solvesPerIteration, new Operation()
+                {
+                    @Override
+                    public long run()
+                    {
+                        roundsNeeded[0] = 0;
+
+                        for (EncodedData[] data : rounds)
+                        {
+                            solver.reset();
+
+                            for (int i = 0; i < data.length && !solver.isSolved(); i++)
+                            {
+                                solver.process(data[i]);
+                                roundsNeeded[0]++;
+                            }
+                        }
+
+                        return roundsNeeded[0];
+                    }
+                });
+
+                System.out.printf("    mean rounds to solve: %.2f%n", roundsNeeded[0] / (double)solvesPerIteration);
+            }
+        }
+    }
+
+    private static int[] createRounds(int valueLength, int roundCount, double loss)
+    {
+        Random random = new Random(SEED);
+        int[] round = TrafficGenerator.encode(createValue(random, valueLength), createValue(random, valueLength));
+        int[] result = new int[round.length * roundCount];
+        int count = 0;
+
+        for (int i = 0; i < result.length; i++)
+        {
+            if (random.nextDouble() >= loss)
+            {
+                result[count++] = round[i % round.length];
+            }
+        }
+
+        return Arrays.copyOf(result, count);
+    }
+
+    // Creates the encoded data that LengthDecoder would pass to the SSID solver on each round.
+    private static EncodedData[] createEncodedData(Random random, int valueLength, int roundCount, double loss)
+    {
+        int[] round = TrafficGenerator.encode(createValue(random, valueLength), "");
+        EncodedData[] result = new EncodedData[roundCount];
+
+        for (int i = 0; i < roundCount; i++)
+        {
+            EncodedData data = new EncodedData(round.length);
+
+            // The SSID length value follows the separators and the tag.
+            data.addLength(round[3] - LengthDecoder.LEN_MIN);
+
+            for (int j = 4; j < 4 + (valueLength * 2); j++)
+            {
+                if (random.nextDouble() >= loss)
+                {
+                    data.addData(round[j] - LengthDecoder.DATA_MIN);
+                }
+            }
+
+            result[i] = data;
+        }
+
+        return result;
+    }
+
+    private static String createValue(Random random, int length)
+    {
+        char[] chars = new char[length];
+
+        for (int i = 0; i < length; i++)
+        {
+            chars[i] = (char)(' ' + random.nextInt('~' - ' ' + 1));
+        }
+
+        return new String(chars);
+    }
+
+    private void run(String name, long operationsPerIteration, Operation operation)
+    {
+        if (!name.contains(filter))
+        {
+            return;
+        }
+
+        long blackhole = 0;
+
+        for (int i = 0; i < WARMUP_ITERATIONS; i++)
+        {
+            blackhole += operation.run();
+        }
+
+        long[] nanos = new long[MEASUREMENT_ITERATIONS];
+        long threadId = Thread.currentThread().getId();
+        long allocatedStart = threads.getThreadAllocatedBytes(threadId);
+
+        for (int i = 0; i < MEASUREMENT_ITERATIONS; i++)
+        {
+            long start = System.nanoTime();
+
+            blackhole += operation.run();
+            nanos[i] = System.nanoTime() - start;
+        }
+
+        long allocated = threads.getThreadAllocatedBytes(threadId) - allocatedStart;
+        long operations = operationsPerIteration * MEASUREMENT_ITERATIONS;
+        long total = 0;
+
+        for (long n : nanos)
+        {
+            total += n;
+        }
+
+        Arrays.sort(nanos);
+
+        System.out.printf("%-45s %10.1f ns/op (min %.1f) %10.2f B/op [%d]%n", name,
+            total / (double)operations, nanos[0] / (double)operationsPerIteration,
+            allocated / (double)operations, blackhole);
+    }
+
+    private interface Operation
+    {
+        // Returns a value derived from the work done so that it can't be optimized away.
+        long run();
+    }
+
+    private static class CountingListener implements SolutionListener
+    {
+        private long count = 0;
+
+        @Override
+        public void solved(Solution solution) { count++; }
+    }
+
+    // Generated frames held in memory so they can be replayed without any I/O or parsing.
+    private static class Corpus implements FrameWriter
+    {
+        private long[] bssids = new long[1024];
+        private int[] frequencies = new int[1024];
+        private long[] sources = new long[1024];
+        private long[] destinations = new long[1024];
+        private int[] lengths = new int[1024];
+        private int size = 0;
+
+        @Override
+        public void write(long bssid, int frequency, long source, long destination, int length)
+        {
+            if (size == lengths.length)
+            {
+                bssids = Arrays.copyOf(bssids, size * 2);
+                frequencies = Arrays.copyOf(frequencies, size * 2);
+                sources = Arrays.copyOf(sources, size * 2);
+                destinations = Arrays.copyOf(destinations, size * 2);
+                lengths = Arrays.copyOf(lengths, size * 2);
+            }
+
+            bssids[size] = bssid;
+            frequencies[size] = frequency;
+            sources[size] = source;
+            destinations[size] = destination;
+            lengths[size] = length;
+            size++;
+        }
+
+        @Override
+        public void flush() { }
+
+        public long replay(FrameHandler handler)
+        {
+            long solved = 0;
+
+            for (int i = 0; i < size; i++)
+            {
+                solved += handler.process(FrameHandler.NO_TIMESTAMP, bssids[i], frequencies[i], sources[i], destinations[i], lengths[i]) ? 1 : 0;
+            }
+
+            return solved;
+        }
+    }
+}
@@ -0,0 +1,201 @@
+/**
+ * Copyright 2013 George C. Hawkins
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.betaengine.smartconfig.device.decoder;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+// Drives a ChannelHopper end to end without a radio - generated traffic stands in for the capture,
+// a simulated radio for the tuner and a simulated clock for the wall clock. The traffic is spread
+// over several channels, at a fixed rate, and the analyzer only sees the frames on the channel that
+// the radio is tuned to. Each scenario is run with the decoder feedback and then, as a baseline,
+// with feedback that never reports any decoders, i.e. plain round-robin hopping.
+//
+// For each run it reports the solutions found, when the last one was found and how long the hopper
+// spent focused. The traffic is generated from a fixed seed so the results are reproducible.
+public class HopperSimulation
+{
+    private final static long SEED = 1;
+    private final static int FRAMES_PER_SECOND = 2000;
+    private final static long DWELL = 250; // Milliseconds.
+    private final static long FOCUS_TIMEOUT = 5000;
+    private final static int[] FREQUENCIES = ChannelHopper.DEFAULT_FREQUENCIES;
+
+    public static void main(String[] args) throws IOException
+    {
+        runScenario("3 sessions on 3 channels", 3, 3, 2);
+        runScenario("1 session on 1 channel", 1, 1, 2);
+        runScenario("6 sessions on 3 channels, noisy", 6, 3, 10);
+    }
+
+    private static void runScenario(String name, int sessionCount, int bssCount, double noise) throws IOException
+    {
+        Air air = new Air();
+        TrafficGenerator generator = new TrafficGenerator(SEED);
+
+        generator.setSessionCount(sessionCount);
+        generator.setBssCount(bssCount);
+        generator.setNoise(noise);
+        generator.setLoss(0.05);
+        generator.setRounds(200);
+        generator.generate(air);
+
+        System.out.println(name + " (" + air.size + " frames over " + (air.size * 1000L / FRAMES_PER_SECOND) + "ms):");
+        run("feedback", air, false);
+        run("round-robin", air, true);
+    }
+
+    private static void run(String name, Air air, boolean blind)
+    {
+        final Solutions solutions = new Solutions();
+        final Analyzer analyzer = new Analyzer(solutions);
+        Radio radio = new Radio();
+        ChannelHopper.ChannelActivity activity = blind ? new NoActivity() : new ChannelHopper.ChannelActivity()
+        {
+            private final DecoderMetrics metrics = DecoderMetrics.getInstance();
+
+            // Only decoders come from the shared metrics, solutions are counted for this run alone.
+            @Override
+            public long getDecodersSpawned(int frequency) { return metrics.getChannelDecodersSpawned(frequency); }
+
+            @Override
+            public long getSolutions(int frequency) { return solutions.getCount(frequency); }
+        };
+        ChannelHopper hopper = new ChannelHopper(FREQUENCIES, radio, activity);
+
+        hopper.setDwell(DWELL);
+        hopper.setFocusTimeout(FOCUS_TIMEOUT);
+
+        long nextHop = 0;
+        long focused = 0;
+
+        for (int i = 0; i < air.size; i++)
+        {
+            long now = i * 1000L / FRAMES_PER_SECOND;
+
+            if (now >= nextHop)
+            {
+                long wait = hopper.hop(now);
+
+                focused += hopper.isFocused() ? wait : 0;
+                nextHop = now + wait;
+            }
+
+            if (air.frequencies[i] == radio.frequency)
+            {
+                solutions.now = now;
+                analyzer.process(now * 1000, air.bssids[i], air.frequencies[i], air.sources[i], air.destinations[i], air.lengths[i]);
+            }
+        }
+
+        System.out.println(String.format("    %-12s %d solution(s), last after %dms, %dms focused",
+            name, solutions.total, solutions.last, focused));
+    }
+
+    // The generated frames, in the order they're sent, on every channel.
+    private static class Air implements FrameWriter
+    {
+        private long[] bssids = new long[1024];
+        private int[] frequencies = new int[1024];
+        private long[] sources = new long[1024];
+        private long[] destinations = new long[1024];
+        private int[] lengths = new int[1024];
+        private int size = 0;
+
+        @Override
+        public void write(long bssid, int frequency, long source, long destination, int length)
+        {
+            if (size == lengths.length)
+            {
+                bssids = Arrays.copyOf(bssids, size * 2);
+                frequencies = Arrays.copyOf(frequencies, size * 2);
+                sources = Arrays.copyOf(sources, size * 2);
+                destinations = Arrays.copyOf(destinations, size * 2);
+                lengths = Arrays.copyOf(lengths, size * 2);
+            }
+
+            bssids[size] = bssid;
+            frequencies[size] = frequency;
+            sources[size] = source;
+            destinations[size] = destination;
+            lengths[size] = length;
+            size++;
+        }
+
+        @Override
+        public void flush() { }
+    }
+
+    // Tuning always succeeds and takes effect immediately.
+    private static class Radio implements ChannelHopper.Tuner
+    {
+        private int frequency = 0;
+
+        @Override
+        public void tune(int frequency) { this.frequency = frequency; }
+    }
+
+    private static class NoActivity implements ChannelHopper.ChannelActivity
+    {
+        @Override
+        public long getDecodersSpawned(int frequency) { return 0; }
+
+        @Override
+        public long getSolutions(int frequency) { return 0; }
+    }
+
+    private static class Solutions implements SolutionListener
+    {
+        private final long[] counts = new long[FREQUENCIES.length];
+        private long now = 0;
+        private long total = 0;
+        private long last = 0;
+
+        @Override
+        public void solved(Solution solution)
+        {
+            int index = indexOf(solution.getFrequency());
+
+            if (index >= 0)
+            {
+                counts[index]++;
+            }
+
+            total++;
+            last = now;
+        }
+
+        public long getCount(int frequency)
+        {
+            int index = indexOf(frequency);
+
+            return (index >= 0) ? counts[index] : 0;
+        }
+
+        private static int indexOf(int frequency)
+        {
+            for (int i = 0; i < FREQUENCIES.length; i++)
+            {
+                if (FREQUENCIES[i] == frequency)
+                {
+                    return i;
+                }
+            }
+
+            return -1;
+        }
+    }
+}
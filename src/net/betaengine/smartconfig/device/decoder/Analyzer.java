@@ -15,27 +15,433 @@
  */
 package net.betaengine.smartconfig.device.decoder;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 
-import com.google.common.collect.EvictingQueue;
-
-public class Analyzer
+// Each link, within each partition, i.e. BSS and channel (see Partitions), is decoded independently,
+// so the same pair of addresses seen on another BSS or channel is a different link. Once a link's SSID and keyphrase have been solved
+// they're reported to the listener and the link's state is reset so that the same
+// analyzer can go on to decode any number of further sessions, on this or other links.
+//
+// Links are first tracked in a LinkSketch and only get a LinkManager, which is far bigger,
+// once they show the separator pattern, i.e. once they look like they might be Smart Config links.
+// So a partition only costs more than its sketch entries once one of its links shows the pattern.
+// Frames, promotions, decoders and solutions are counted per channel, see DecoderMetrics.getChannelActivity().
+//
+// The separator pairs that links see are gathered per BSS by an OffsetEstimator, once it's confident
+// of a BSS's encryption offset new links on that BSS only ever get a decoder with that offset.
+//
+// Links that go quiet for longer than the idle timeout are forgotten and, if the memory used
+// to track links exceeds the memory budget, the least promising links are forgotten until it's
+// back under budget. Least promising means those without any decoders first, then those whose
+// decoders haven't seen a tag, and within each of these groups those that have been idle longest.
+//
+// If a solver executor is set then solving happens on it, rather than on the thread calling process(...),
+// and a session is reported on the first frame for its link after its solving completes. Sessions whose
+// solving completes after their link's last frame are only reported once flush() is called.
+//
+// If a checkpoint interval is set then the state of every LinkManager is serialized at that
+// interval, see Checkpoint, and can later be restored into a new analyzer. The sketch isn't
+// included as it only holds a few lengths per link that are quickly seen again.
+public class Analyzer implements FrameHandler, Checkpoint.Restorer
 {
-    private final Map<Link, LinkManager> linkManagers = new HashMap<>();
+    public final static long DEFAULT_IDLE_TIMEOUT = TimeUnit.MINUTES.toMillis(10);
+    public final static long DEFAULT_MEMORY_BUDGET = Runtime.getRuntime().maxMemory() / 2;
+
+    // The clock is only read every CLOCK_INTERVAL frames as the idle timeout needn't be precise.
+    private final static int CLOCK_INTERVAL = 1024; // Must be a power of 2.
+
+    private final static int SKETCH_CAPACITY = 64 * 1024;
+
+    // Evicting for memory takes a sort of all the links so it frees a little more than is needed.
+    private final static int BUDGET_HEADROOM_PERCENT = 10;
+
+    private final static DecoderMetrics metrics = DecoderMetrics.getInstance();
+
+    private final LinkSketch sketch = new LinkSketch(SKETCH_CAPACITY);
+    private final int[] promotedLengths = new int[LinkSketch.HISTORY_SIZE];
+    private final LinkTable<LinkManager> linkManagers = new LinkTable<>();
+    private LinkTable<LinkManager> restoring = null; // Links read from a checkpoint but not yet applied.
+    private final ChannelCounts channelCounts = new ChannelCounts();
+    private final SolutionListener listener;
+
+    // These may be changed from another thread, e.g. see ParallelAnalyzer.
+    private volatile long idleTimeout = DEFAULT_IDLE_TIMEOUT;
+    private volatile long memoryBudget = DEFAULT_MEMORY_BUDGET;
+    private volatile Executor solverExecutor = null;
+    private volatile OffsetEstimator offsetEstimator = new OffsetEstimator();
+    private volatile long checkpointInterval = 0;
+    private volatile byte[] latestCheckpoint = null;
 
-    public boolean process(String source, String destination, int length)
+    private long frameCount = 0;
+    private long now = System.currentTimeMillis();
+    private long lastIdleSweep = now;
+    private long lastCheckpoint = now;
+    private long memoryUsage = 0;
+    private long linksRestored = 0; // Not yet published, see publishCounts().
+    private long linksDiscarded = 0;
+
+    public Analyzer(SolutionListener listener)
     {
-        Link link = new Link(source, destination);
-        LinkManager manager = linkManagers.get(link);
+        this.listener = listener;
+    }
+
+    public void setIdleTimeout(long millis) { this.idleTimeout = millis; }
+
+    public void setMemoryBudget(long bytes) { this.memoryBudget = bytes; }
+
+    // Only affects links that are promoted to a LinkManager after this is called.
+    public void setSolverExecutor(Executor executor) { this.solverExecutor = executor; }
+
+    // Replaces this analyzer's own estimator, e.g. so that it can be shared with other analyzers. This must be
+    // done before process(...) is first called.
+    public void setOffsetEstimator(OffsetEstimator offsetEstimator) { this.offsetEstimator = offsetEstimator; }
+
+    // Zero, the default, means checkpoints are only taken when checkpoint() is called.
+    public void setCheckpointInterval(long millis) { this.checkpointInterval = millis; }
+
+    // The most recent checkpoint or null if none has been taken. Can be called from any thread.
+    public byte[] getLatestCheckpoint() { return latestCheckpoint; }
+
+    // The approximate number of bytes used to track all links, the sketch's share of which is fixed.
+    public long getMemoryUsage() { return sketch.getMemoryUsage() + memoryUsage; }
+
+    // Returns true if this frame completed a session, i.e. resulted in a new solution.
+    @Override
+    public boolean process(long micros, long bssid, int frequency, long source, long destination, int length)
+    {
+        if ((frameCount++ & (CLOCK_INTERVAL - 1)) == 0)
+        {
+            tick();
+        }
+
+        channelCounts.add(frequency);
+
+        long partition = Partitions.of(bssid, frequency);
+        LinkManager manager = linkManagers.get(partition, source, destination);
 
         if (manager == null)
         {
-            manager = new LinkManager();
-            linkManagers.put(link, manager);
+            if (!sketch.add(partition, source, destination, length))
+            {
+                return false;
+            }
+
+            int count = sketch.remove(partition, source, destination, promotedLengths);
+
+            manager = new LinkManager(partition, promotedLengths, count, solverExecutor, offsetEstimator);
+            linkManagers.put(partition, source, destination, manager);
+            metrics.linkManagerCreated();
+            metrics.channelPromoted(Partitions.getFrequency(partition));
+        }
+
+        manager.lastFrame = frameCount;
+        manager.lastSeen = now;
+
+        long previousUsage = manager.memoryUsage;
+        LengthDecoder decoder = manager.add(length);
+        boolean result = decoder != null && solved(manager, new Solution(partition, source, destination, decoder.getSsidAlternatives(), decoder.getKeyphraseAlternatives()));
+
+        memoryUsage += manager.memoryUsage - previousUsage;
+
+        if (memoryUsage > memoryBudget)
+        {
+            enforceMemoryBudget();
+        }
+
+        return result;
+    }
+
+    // Returns the approximate number of bytes used to track the given link, or 0 if it doesn't have a LinkManager.
+    public long getMemoryUsage(long partition, long source, long destination)
+    {
+        LinkManager manager = linkManagers.get(partition, source, destination);
+
+        return (manager != null) ? manager.getMemoryUsage() : 0;
+    }
+
+    // Reports any sessions that have been solved but not yet reported, i.e. whose solving completed
+    // asynchronously after their link's last frame, and publishes any counts not yet added to the
+    // metrics. This must be called from the thread that calls process(...) or once that thread has
+    // finished. Returns the number of new solutions reported.
+    public int flush()
+    {
+        int count = 0;
+
+        publishCounts();
+
+        for (int slot = 0; slot < linkManagers.capacity(); slot++)
+        {
+            if (linkManagers.isOccupied(slot))
+            {
+                LinkManager manager = linkManagers.getValue(slot);
+                LengthDecoder decoder = manager.getSolved();
+
+                if (decoder != null)
+                {
+                    long previousUsage = manager.memoryUsage;
+
+                    if (solved(manager, new Solution(linkManagers.getPartition(slot), linkManagers.getSource(slot), linkManagers.getDestination(slot),
+                        decoder.getSsidAlternatives(), decoder.getKeyphraseAlternatives())))
+                    {
+                        count++;
+                    }
+
+                    memoryUsage += manager.memoryUsage - previousUsage;
+                }
+            }
+        }
+
+        return count;
+    }
+
+    // Forgets the given link, if it has a LinkManager, e.g. once it's known that it won't be seen again.
+    public void forget(long partition, long source, long destination)
+    {
+        LinkManager manager = linkManagers.remove(partition, source, destination);
+
+        if (manager != null)
+        {
+            discard(manager);
+        }
+    }
+
+    // Serializes every link's state, for getLatestCheckpoint(). This must be called from the thread
+    // that calls process(...) or once that thread has finished.
+    public void checkpoint()
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+
+        try
+        {
+            Varints.writeUnsigned(out, linkManagers.size());
+
+            for (int slot = 0; slot < linkManagers.capacity(); slot++)
+            {
+                if (linkManagers.isOccupied(slot))
+                {
+                    long partition = linkManagers.getPartition(slot);
+
+                    MacAddresses.write(out, Partitions.getBssid(partition));
+                    Varints.writeUnsigned(out, Partitions.getFrequency(partition));
+                    MacAddresses.write(out, linkManagers.getSource(slot));
+                    MacAddresses.write(out, linkManagers.getDestination(slot));
+                    linkManagers.getValue(slot).write(out);
+                }
+            }
+        }
+        catch (IOException e)
+        {
+            throw new AssertionError(e); // Writing to memory can't fail.
+        }
+
+        latestCheckpoint = bytes.toByteArray();
+    }
+
+    // Reads a link from a checkpoint, this must be done before any frames are processed. The link
+    // isn't used until finishRestore(true) is called.
+    @Override
+    public void restore(long partition, long source, long destination, DataInput in) throws IOException
+    {
+        if (restoring == null)
+        {
+            restoring = new LinkTable<>();
+        }
+
+        if (linkManagers.get(partition, source, destination) != null || restoring.get(partition, source, destination) != null)
+        {
+            throw new IOException("link restored twice: " + MacAddresses.toString(source) + " -> " + MacAddresses.toString(destination) +
+                " (" + Partitions.toString(partition) + ")");
+        }
+
+        LinkManager manager = new LinkManager(partition, promotedLengths, 0, solverExecutor, offsetEstimator);
+
+        // Added before reading so that a link that fails part way through is also released.
+        restoring.put(partition, source, destination, manager);
+        manager.read(in);
+    }
+
+    @Override
+    public void finishRestore(boolean success)
+    {
+        if (restoring == null)
+        {
+            return;
+        }
+
+        for (int slot = 0; slot < restoring.capacity(); slot++)
+        {
+            if (restoring.isOccupied(slot))
+            {
+                LinkManager manager = restoring.getValue(slot);
+
+                if (success)
+                {
+                    manager.lastFrame = frameCount;
+                    manager.lastSeen = now;
+                    linkManagers.put(restoring.getPartition(slot), restoring.getSource(slot), restoring.getDestination(slot), manager);
+                    memoryUsage += manager.memoryUsage;
+                    linksRestored++;
+                    metrics.linkManagerCreated();
+                }
+                else
+                {
+                    manager.release();
+                }
+            }
+        }
+
+        restoring = null;
+    }
+
+    private boolean solved(LinkManager manager, Solution solution)
+    {
+        long sessionStart = manager.sessionStart;
+
+        manager.reset();
+
+        // The sender typically carries on broadcasting for a while after we've got everything
+        // we need so the same values are often solved again, there's no need to report them twice.
+        if (solution.hasSameValues(manager.lastSolution))
+        {
+            return false;
         }
 
-        return manager.add(length);
+        manager.lastSolution = solution;
+        metrics.sessionSolved(System.nanoTime() - sessionStart);
+        metrics.channelSolved(solution.getFrequency());
+        listener.solved(solution);
+
+        return true;
+    }
+
+    private void tick()
+    {
+        now = System.currentTimeMillis();
+        publishCounts();
+
+        // Sweeping every half timeout means no link stays more than 1.5 times the timeout.
+        if (now - lastIdleSweep >= idleTimeout / 2)
+        {
+            lastIdleSweep = now;
+            evictIdle(now - idleTimeout);
+        }
+
+        if (checkpointInterval > 0 && now - lastCheckpoint >= checkpointInterval)
+        {
+            lastCheckpoint = now;
+            checkpoint();
+        }
+    }
+
+    private void evictIdle(long cutoff)
+    {
+        int slot = 0;
+
+        while (slot < linkManagers.capacity())
+        {
+            if (linkManagers.isOccupied(slot) && linkManagers.getValue(slot).lastSeen < cutoff)
+            {
+                evict(slot);
+                metrics.linkEvictedIdle();
+            }
+            else
+            {
+                slot++;
+            }
+        }
+    }
+
+    // Every link is given a key, where lower keys are less promising, and the keys are sorted to find
+    // the threshold below which enough memory is freed. The key is made up of the link's promise, the
+    // frame it was last seen in and its slot (the slot just makes the key unique so its link can be found
+    // again). The promise takes 2 bits and the key must stay positive so, if the frame count needs more
+    // bits than are left, its low bits are discarded.
+    private void enforceMemoryBudget()
+    {
+        long target = memoryBudget - (memoryBudget / 100 * BUDGET_HEADROOM_PERCENT);
+        int slotBits = Integer.numberOfTrailingZeros(linkManagers.capacity());
+        int frameBits = 61 - slotBits;
+        int frameShift = Math.max(0, (64 - Long.numberOfLeadingZeros(frameCount)) - frameBits);
+        long[] keys = new long[linkManagers.size()];
+        int count = 0;
+
+        for (int slot = 0; slot < linkManagers.capacity(); slot++)
+        {
+            if (linkManagers.isOccupied(slot))
+            {
+                keys[count++] = (getEvictionKey(linkManagers.getValue(slot), frameBits, frameShift) << slotBits) | slot;
+            }
+        }
+
+        Arrays.sort(keys);
+
+        long freed = 0;
+        long threshold = Long.MAX_VALUE;
+
+        for (int i = 0; i < count && threshold == Long.MAX_VALUE; i++)
+        {
+            freed += linkManagers.getValue((int)(keys[i] & ((1L << slotBits) - 1))).memoryUsage;
+
+            if (memoryUsage - freed <= target)
+            {
+                threshold = keys[i] >>> slotBits;
+            }
+        }
+
+        int slot = 0;
+
+        while (slot < linkManagers.capacity())
+        {
+            if (linkManagers.isOccupied(slot) && getEvictionKey(linkManagers.getValue(slot), frameBits, frameShift) <= threshold)
+            {
+                evict(slot);
+                metrics.linkEvictedForMemory();
+            }
+            else
+            {
+                slot++;
+            }
+        }
+    }
+
+    private long getEvictionKey(LinkManager manager, int frameBits, int frameShift)
+    {
+        return ((long)manager.getPromise() << frameBits) | (manager.lastFrame >>> frameShift);
+    }
+
+    private void evict(int slot)
+    {
+        LinkManager manager = linkManagers.getValue(slot);
+
+        linkManagers.removeAt(slot);
+        discard(manager);
+    }
+
+    private void discard(LinkManager manager)
+    {
+        memoryUsage -= manager.memoryUsage;
+        manager.release();
+        linksDiscarded++;
+        metrics.linkManagerRemoved();
+    }
+
+    private void publishCounts()
+    {
+        channelCounts.publish();
+        sketch.publishCounts();
+        metrics.linksChanged(linksRestored, linksDiscarded);
+        linksRestored = 0;
+        linksDiscarded = 0;
     }
 
     private static class LinkManager
@@ -43,45 +449,535 @@ public class Analyzer
         private final static int DIFF =
             LengthDecoder.SEPARATOR_END - LengthDecoder.SEPARATOR_START;
 
-        private final static int MAX_PREVIOUS_LENGTHS = 16; // Might need to be higher for busy n/w.
+        // The previous lengths window needs to be bigger the more other traffic is interleaved with the
+        // Smart Config traffic. Every ADAPT_INTERVAL frames it's resized, within these bounds, according
+        // to the interleave seen by the best decoder. The minimum is enough for a link with no other traffic.
+        private final static int MIN_PREVIOUS_LENGTHS = 16;
+        private final static int MAX_PREVIOUS_LENGTHS = 256;
+        private final static int ADAPT_INTERVAL = 64; // Must be a power of 2.
+
+        // A sender repeats its tags every few dozen frames so a decoder that goes this long without
+        // seeing one, scaled up for busy links, has the wrong offset. And on a busy link random pairs of
+        // lengths can look like separators so the number of decoders is capped, the lowest scoring is
+        // evicted to make room.
+        private final static int MAX_SIZES_WITHOUT_PROGRESS = 256;
+        private final static int MAX_DECODERS = 8;
+
+        // A rough allowance for the objects, and table slot, that every link has whatever its state.
+        private final static int LINK_OVERHEAD = 208;
 
-        private final EvictingQueue<Integer> previousLengths = EvictingQueue.create(MAX_PREVIOUS_LENGTHS);
-        private final Map<Integer, LengthDecoder> decoders = new HashMap<>();
+        // Encryption never adds more than this so larger offsets are never reported to the estimator.
+        private final static int MAX_RECORDED_OFFSET = 256;
 
-        public boolean add(int length)
+        private final static long NOT_ADDED = -1;
+
+        private final IntRingBuffer previousLengths = new IntRingBuffer(MIN_PREVIOUS_LENGTHS);
+
+        // For a given length, i.e. a potential SEPARATOR_END, there's only one length that could be its
+        // SEPARATOR_START. So rather than searching previousLengths for it, the position at which each
+        // length was last added is recorded here, indexed by the length's low bits, and it only takes a
+        // single lookup to find out if it's still in the window. Each entry holds a length in its high
+        // 32 bits and the low 32 bits of its position in lengthCount. The table is twice the size of the
+        // window so the chance of a later length overwriting the one we're looking for is small.
+        private long[] lastAdded = createLastAdded(MIN_PREVIOUS_LENGTHS);
+        private long lengthCount = 0;
+
+        // There are only ever a handful of decoders so a list, that can be walked by index, is
+        // used rather than a map in order to avoid creating an iterator for every frame.
+        private final List<LengthDecoder> decoders = new ArrayList<>();
+        private final long bssid;
+        private final int frequency;
+        private final Executor solverExecutor;
+        private final OffsetEstimator offsetEstimator;
+        private int estimatedOffset; // The BSS's offset, if known, as of the last adapt().
+
+        // The offsets already reported to the estimator, each link only reports a given offset once.
+        private final long[] recordedOffsets = new long[MAX_RECORDED_OFFSET / 64];
+        
+        private Solution lastSolution = null;
+        private long sessionStart; // When the first of the current decoders was created.
+        private long frameCount = 0;
+        private long memoryUsage = 0; // The usage last reported to the metrics.
+        private long lastFrame; // The analyzer's frame count when this link was last seen.
+        private long lastSeen; // The analyzer's clock when this link was last seen.
+
+        // The manager starts with the lengths that the sketch had for the link.
+        public LinkManager(long partition, int[] lengths, int count, Executor solverExecutor, OffsetEstimator offsetEstimator)
         {
+            this.bssid = Partitions.getBssid(partition);
+            this.frequency = Partitions.getFrequency(partition);
+            this.solverExecutor = solverExecutor;
+            this.offsetEstimator = offsetEstimator;
+            this.estimatedOffset = offsetEstimator.getOffset(bssid);
+
+            for (int i = 0; i < count; i++)
+            {
+                remember(lengths[i]);
+            }
+        }
+
+        // Returns the decoder that has solved both SSID and keyphrase, if any.
+        public LengthDecoder add(int length)
+        {
+            if ((frameCount++ & (ADAPT_INTERVAL - 1)) == 0)
+            {
+                adapt();
+            }
+
             // Look out for packets with data lengths that differ by the same amount
             // as the difference between SEPARATOR_END and SEPARATOR_START.
-            for (int oldLength : previousLengths)
+            int oldLength = length - DIFF;
+
+            if (oldLength > 0 && isInWindow(oldLength))
             {
-                if (length - oldLength == DIFF)
+                // Offset is essentially the consistent change in size introduced by encryption.
+                int offset = oldLength - LengthDecoder.SEPARATOR_START;
+
+                // Once the BSS's offset is known, pairs with any other offset are most likely just chance.
+                if (estimatedOffset != OffsetEstimator.UNKNOWN && offset != estimatedOffset && !canExplore(offset))
+                {
+                    metrics.speculativeDecoderSkipped();
+                }
+                else if (!hasDecoder(offset))
                 {
-                    // Offset is essentially the consistent change in size introduced by encryption.
-                    int offset = oldLength - LengthDecoder.SEPARATOR_START;
+                    if (decoders.isEmpty())
+                    {
+                        sessionStart = System.nanoTime();
+                    }
 
-                    if (!decoders.containsKey(offset))
+                    if (decoders.size() == MAX_DECODERS)
                     {
-                        decoders.put(offset, new LengthDecoder(offset, previousLengths));
+                        evict(getLowestScoring());
                     }
+
+                    decoders.add(new LengthDecoder(offset, previousLengths, solverExecutor));
+                    metrics.lengthDecoderCreated();
+
+                    // This is what ChannelHopper looks at to decide whether to focus on this link's channel.
+                    metrics.channelDecoderSpawned(frequency);
                 }
             }
-            
-            // Note: a smarter algorithm that was also handling channel hopping
-            // would presumably focus on a given channel on finding enough data
-            // that looked promising (and go back to hopping if it didn't find a
-            // solution within a given time limit).
 
-            for (LengthDecoder decoder : decoders.values())
+            for (int i = 0; i < decoders.size(); i++)
             {
+                LengthDecoder decoder = decoders.get(i);
+                
                 if (decoder.add(length))
                 {
-                    return true;
+                    recordOffset(decoder.getOffset());
+
+                    return decoder;
+                }
+            }
+
+            long maxSizesWithoutProgress = MAX_SIZES_WITHOUT_PROGRESS * (previousLengths.capacity() / MIN_PREVIOUS_LENGTHS);
+
+            // Walk backwards so evictions don't disturb the indexes still to be visited.
+            for (int i = decoders.size() - 1; i >= 0; i--)
+            {
+                if (decoders.get(i).getSizesSinceProgress() > maxSizesWithoutProgress)
+                {
+                    evict(i);
+                }
+            }
+
+            remember(length);
+
+            return null;
+        }
+        
+        // Retires the current decoders, and the history that led to them, once they've done their job.
+        public void reset()
+        {
+            clearDecoders();
+            previousLengths.clear();
+            Arrays.fill(lastAdded, NOT_ADDED);
+            updateMemoryUsage();
+        }
+
+        // Releases everything ahead of this manager being discarded.
+        public void release()
+        {
+            clearDecoders();
+            metrics.linkMemoryChanged(memoryUsage, 0);
+            memoryUsage = 0;
+        }
+
+        public void write(DataOutput out) throws IOException
+        {
+            previousLengths.write(out);
+            Varints.writeUnsigned(out, lengthCount);
+            Varints.writeUnsigned(out, frameCount);
+            Varints.writeUnsigned(out, decoders.isEmpty() ? 0 : System.nanoTime() - sessionStart);
+            out.writeBoolean(lastSolution != null);
+
+            if (lastSolution != null)
+            {
+                writeAlternatives(out, lastSolution.getSsidAlternatives());
+                writeAlternatives(out, lastSolution.getKeyphraseAlternatives());
+            }
+
+            Varints.writeUnsigned(out, decoders.size());
+
+            for (int i = 0; i < decoders.size(); i++)
+            {
+                decoders.get(i).write(out);
+            }
+        }
+
+        // Replaces the state of this, newly created, manager with that written by write(...).
+        public void read(DataInput in) throws IOException
+        {
+            previousLengths.read(in, MAX_PREVIOUS_LENGTHS);
+
+            int capacity = previousLengths.capacity();
+
+            if (Integer.bitCount(capacity) != 1 || capacity < MIN_PREVIOUS_LENGTHS || capacity > MAX_PREVIOUS_LENGTHS)
+            {
+                throw new IOException("invalid previous lengths capacity: " + capacity);
+            }
+
+            lengthCount = Varints.readUnsigned(in);
+            frameCount = Varints.readUnsigned(in);
+            sessionStart = System.nanoTime() - Varints.readUnsigned(in);
+
+            if (in.readBoolean())
+            {
+                // Only the values matter, they're used to avoid reporting the same values twice.
+                lastSolution = new Solution(Partitions.UNKNOWN, MacAddresses.INVALID, MacAddresses.INVALID, readAlternatives(in), readAlternatives(in));
+            }
+
+            int decoderCount = Varints.readCount(in);
+
+            if (decoderCount > MAX_DECODERS)
+            {
+                throw new IOException("too many decoders: " + decoderCount);
+            }
+
+            for (int i = 0; i < decoderCount; i++)
+            {
+                decoders.add(LengthDecoder.read(in, solverExecutor));
+                metrics.lengthDecoderCreated();
+            }
+
+            lastAdded = createLastAdded(previousLengths.capacity());
+            recordPreviousLengths();
+            updateMemoryUsage();
+        }
+
+        // Returns a decoder that has solved both SSID and keyphrase, if any, without adding anything.
+        public LengthDecoder getSolved()
+        {
+            for (int i = 0; i < decoders.size(); i++)
+            {
+                if (decoders.get(i).isSolved())
+                {
+                    return decoders.get(i);
                 }
             }
 
+            return null;
+        }
+
+        // 0 if there are no decoders, 1 if none of them has seen a tag and 2 otherwise.
+        public int getPromise()
+        {
+            for (int i = 0; i < decoders.size(); i++)
+            {
+                if (decoders.get(i).hasSeenTag())
+                {
+                    return 2;
+                }
+            }
+
+            return decoders.isEmpty() ? 0 : 1;
+        }
+
+        public long getMemoryUsage()
+        {
+            long result = LINK_OVERHEAD + (previousLengths.capacity() * 4) + (lastAdded.length * 8);
+
+            for (int i = 0; i < decoders.size(); i++)
+            {
+                result += decoders.get(i).getMemoryUsage();
+            }
+
+            return result;
+        }
+
+        // The window size learnt for a link is kept, even once its decoders are retired, as
+        // the other traffic on a link is likely to be much the same from one session to the next.
+        private void adapt()
+        {
+            // The estimate is refreshed so links follow it as it changes, or is lost, and links that were
+            // promoted before their BSS's offset was known pick it up.
+            estimatedOffset = offsetEstimator.getOffset(bssid);
+
+            LengthDecoder best = null;
+
+            for (int i = 0; i < decoders.size(); i++)
+            {
+                LengthDecoder decoder = decoders.get(i);
+
+                if (decoder.hasSeenTag())
+                {
+                    recordOffset(decoder.getOffset());
+
+                    if (best == null || decoder.getScore() > best.getScore())
+                    {
+                        best = decoder;
+                    }
+                }
+            }
+
+            if (best != null)
+            {
+                int needed = (int)Math.min(Math.ceil(MIN_PREVIOUS_LENGTHS * best.getInterleave()), MAX_PREVIOUS_LENGTHS);
+                int target = Math.max(MIN_PREVIOUS_LENGTHS, Integer.highestOneBit(Math.max(needed - 1, 1)) << 1);
+
+                if (target != previousLengths.capacity())
+                {
+                    previousLengths.resize(target);
+                    lastAdded = createLastAdded(target);
+                    recordPreviousLengths();
+                }
+            }
+
+            updateMemoryUsage();
+        }
+
+        // Records the positions of the lengths still in the window.
+        private void recordPreviousLengths()
+        {
+            long position = lengthCount - previousLengths.size();
+
+            for (int i = 0; i < previousLengths.size(); i++)
+            {
+                record(previousLengths.get(i), position++);
+            }
+        }
+
+        private void updateMemoryUsage()
+        {
+            long usage = getMemoryUsage();
+
+            metrics.linkMemoryChanged(memoryUsage, usage);
+            memoryUsage = usage;
+        }
+        
+        private void remember(int length)
+        {
             previousLengths.add(length);
+            record(length, lengthCount++);
+        }
+
+        private void record(int length, long position)
+        {
+            lastAdded[length & (lastAdded.length - 1)] = ((long)length << 32) | (position & 0xFFFFFFFFL);
+        }
+
+        // True if the length was added within the last previousLengths.size() lengths.
+        private boolean isInWindow(int length)
+        {
+            long entry = lastAdded[length & (lastAdded.length - 1)];
+
+            // The int arithmetic means the distance is still right if the position wraps.
+            return entry != NOT_ADDED && (int)(entry >>> 32) == length &&
+                (int)lengthCount - (int)entry <= previousLengths.size();
+        }
 
+        private static void writeAlternatives(DataOutput out, List<String> alternatives) throws IOException
+        {
+            Varints.writeUnsigned(out, alternatives.size());
+
+            for (String alternative : alternatives)
+            {
+                out.writeUTF(alternative);
+            }
+        }
+
+        private static List<String> readAlternatives(DataInput in) throws IOException
+        {
+            int count = Varints.readCount(in);
+
+            if (count == 0)
+            {
+                throw new IOException("solution has no alternatives");
+            }
+
+            List<String> result = new ArrayList<>(count);
+
+            for (int i = 0; i < count; i++)
+            {
+                result.add(in.readUTF());
+            }
+
+            return result;
+        }
+
+        private static long[] createLastAdded(int windowSize)
+        {
+            long[] result = new long[windowSize * 2];
+
+            Arrays.fill(result, NOT_ADDED);
+
+            return result;
+        }
+
+        private int getLowestScoring()
+        {
+            int lowest = 0;
+
+            for (int i = 1; i < decoders.size(); i++)
+            {
+                if (decoders.get(i).getScore() < decoders.get(lowest).getScore())
+                {
+                    lowest = i;
+                }
+            }
+
+            return lowest;
+        }
+
+        private void clearDecoders()
+        {
+            for (int i = 0; i < decoders.size(); i++)
+            {
+                decoders.get(i).cancel();
+            }
+
+            metrics.lengthDecodersRemoved(decoders.size());
+            decoders.clear();
+        }
+
+        private void evict(int index)
+        {
+            decoders.remove(index).cancel();
+            metrics.lengthDecodersRemoved(1);
+            metrics.lengthDecoderEvicted();
+        }
+
+        // Reports an offset whose decoder has seen a tag, i.e. one that's very likely real, to the estimator.
+        // Random separator pairs never get this far, and only reporting once per link means the estimate
+        // reflects how many links agree rather than how busy they are.
+        private void recordOffset(int offset)
+        {
+            if (offset < 0 || offset >= MAX_RECORDED_OFFSET)
+            {
+                return;
+            }
+
+            long bit = 1L << (offset & 63);
+
+            if ((recordedOffsets[offset >> 6] & bit) == 0)
+            {
+                recordedOffsets[offset >> 6] |= bit;
+                offsetEstimator.record(bssid, offset);
+            }
+        }
+
+        // Even once the BSS's offset is known, a link is allowed a single decoder at another offset.
+        // Otherwise a wrong estimate, or one that's out of date, e.g. as the BSS has been reconfigured, could
+        // never be contradicted as links would only ever confirm the estimated offset. Whether the estimated
+        // offset's decoder is making progress isn't a guide, at the wrong offset the real traffic is full of
+        // values that look like tags. A real separator pair is followed almost at once by a tag so an
+        // exploring decoder that hasn't seen one within a window's worth of sizes was just chance and is
+        // evicted to make way for the given offset. Offsets that encryption could never add aren't explored.
+        private boolean canExplore(int offset)
+        {
+            if (offset > MAX_RECORDED_OFFSET)
+            {
+                return false;
+            }
+
+            int explorer = -1;
+
+            for (int i = 0; i < decoders.size(); i++)
+            {
+                LengthDecoder decoder = decoders.get(i);
+
+                if (decoder.getOffset() != estimatedOffset)
+                {
+                    if (decoder.getSizesSinceProgress() < previousLengths.capacity())
+                    {
+                        return false;
+                    }
+
+                    explorer = i;
+                }
+            }
+
+            if (explorer != -1)
+            {
+                evict(explorer);
+            }
+
+            return true;
+        }
+
+        private boolean hasDecoder(int offset)
+        {
+            for (int i = 0; i < decoders.size(); i++)
+            {
+                if (decoders.get(i).getOffset() == offset)
+                {
+                    return true;
+                }
+            }
+            
             return false;
         }
     }
+
+    // Frames per channel are counted locally and only added to the shared metrics when the analyzer
+    // ticks. A receiver only sees a handful of channels at a time and usually the same one as the last
+    // frame, so a short array that's searched from the last match is all that's needed.
+    private static class ChannelCounts
+    {
+        private final static int MAX_CHANNELS = 16;
+
+        private final int[] frequencies = new int[MAX_CHANNELS];
+        private final long[] counts = new long[MAX_CHANNELS];
+        private int size = 0;
+        private int last = 0;
+
+        public void add(int frequency)
+        {
+            if (last < size && frequencies[last] == frequency)
+            {
+                counts[last]++;
+                return;
+            }
+
+            for (int i = 0; i < size; i++)
+            {
+                if (frequencies[i] == frequency)
+                {
+                    counts[i]++;
+                    last = i;
+                    return;
+                }
+            }
+
+            if (size == MAX_CHANNELS)
+            {
+                publish();
+            }
+
+            frequencies[size] = frequency;
+            counts[size] = 1;
+            last = size++;
+        }
+
+        public void publish()
+        {
+            for (int i = 0; i < size; i++)
+            {
+                metrics.channelFrames(frequencies[i], counts[i]);
+            }
+
+            size = 0;
+            last = 0;
+        }
+    }
 }
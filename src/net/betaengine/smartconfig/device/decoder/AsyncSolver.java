@@ -0,0 +1,294 @@
+/**
+ * Copyright 2013 George C. Hawkins
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.betaengine.smartconfig.device.decoder;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Runs a Solver either inline, if there's no executor, or on an executor so that the thread
+// adding frames never waits for a search. Work is coalesced: while a task is scheduled or
+// running, newly submitted data just joins the pending data, which the task places before
+// its next search, and any search in progress is superseded, i.e. abandoned, as its result
+// would already be out of date. The solver is only touched by one thread at a time and its result
+// is posted back via a volatile field. The only locking is between the task and write(...), which
+// must see the solver between searches.
+public class AsyncSolver implements Runnable
+{
+    // The solver only keeps this many alternatives so there's no point in keeping more pending.
+    private final static int MAX_PENDING = 32;
+
+    private final static int EXECUTOR_QUEUE_CAPACITY = 1024;
+
+    private final static DecoderMetrics metrics = DecoderMetrics.getInstance();
+
+    private final Solver solver;
+    private final Executor executor;
+    private final ConcurrentLinkedQueue<EncodedData> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pendingCount = new AtomicInteger();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+
+    private volatile List<String> alternatives = null;
+    private volatile boolean cancelled = false;
+
+    public AsyncSolver(String name, Executor executor)
+    {
+        this.solver = new Solver(name);
+        this.executor = executor;
+    }
+
+    // Returns a bounded executor for use with this class. If its queue is full then submitted
+    // data is held until the next submission for the same solver, the caller never waits.
+    public static ExecutorService createExecutor(int threadCount)
+    {
+        final AtomicInteger count = new AtomicInteger();
+
+        return new ThreadPoolExecutor(threadCount, threadCount, 0, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<Runnable>(EXECUTOR_QUEUE_CAPACITY), new ThreadFactory()
+            {
+                @Override
+                public Thread newThread(Runnable runnable)
+                {
+                    Thread thread = new Thread(runnable, "solver-" + count.getAndIncrement());
+
+                    thread.setDaemon(true);
+
+                    return thread;
+                }
+            });
+    }
+
+    public boolean isSolved() { return alternatives != null; }
+
+    public List<String> getAlternatives()
+    {
+        List<String> result = alternatives;
+
+        return (result != null) ? result : Collections.<String>emptyList();
+    }
+
+    // Approximate as, if the solver is running on another thread, its arrays may be changing.
+    public int getMemoryUsage() { return solver.getMemoryUsage(); }
+
+    // The caller's encoded data is copied, if the solver runs asynchronously, so it may be reused.
+    public void submit(EncodedData encodedData)
+    {
+        if (isSolved() || cancelled)
+        {
+            return;
+        }
+
+        if (executor == null)
+        {
+            solver.process(encodedData);
+            publish();
+            return;
+        }
+
+        if (pendingCount.incrementAndGet() > MAX_PENDING && pending.poll() != null)
+        {
+            pendingCount.decrementAndGet();
+        }
+
+        pending.add(copy(encodedData));
+        solver.supersede();
+        schedule();
+    }
+
+    // Abandons any pending or in progress work, e.g. when the decoder using this solver is discarded.
+    public void cancel()
+    {
+        cancelled = true;
+        solver.supersede();
+    }
+
+    @Override
+    public void run()
+    {
+        try
+        {
+            while (!cancelled && !isSolved())
+            {
+                long start = System.nanoTime();
+                boolean added = false;
+                EncodedData encodedData;
+
+                while ((encodedData = pending.poll()) != null)
+                {
+                    pendingCount.decrementAndGet();
+
+                    synchronized (this)
+                    {
+                        solver.add(encodedData);
+                    }
+
+                    added = true;
+                }
+
+                if (!added)
+                {
+                    break;
+                }
+
+                synchronized (this)
+                {
+                    solver.search();
+                    publish();
+                }
+
+                metrics.solverInvoked(System.nanoTime() - start);
+            }
+        }
+        finally
+        {
+            scheduled.set(false);
+        }
+
+        // Data may have been submitted after the last poll but before the flag was cleared,
+        // in which case the submit wouldn't have scheduled a task.
+        if (!pending.isEmpty() && !cancelled && !isSolved())
+        {
+            schedule();
+        }
+    }
+
+    // Writes the solver's evidence along with any data still pending. If a search is in progress
+    // then this waits for it to finish, a search is bounded so the wait is short.
+    public synchronized void write(DataOutput out) throws IOException
+    {
+        solver.write(out);
+
+        List<EncodedData> waiting = new ArrayList<>(pending);
+
+        Varints.writeUnsigned(out, waiting.size());
+
+        for (EncodedData encodedData : waiting)
+        {
+            Varints.writeUnsigned(out, encodedData.getLengthCount());
+
+            for (int i = 0; i < encodedData.getLengthCount(); i++)
+            {
+                Varints.writeUnsigned(out, encodedData.getLength(i));
+            }
+
+            Varints.writeUnsigned(out, encodedData.getDataCount());
+
+            for (int i = 0; i < encodedData.getDataCount(); i++)
+            {
+                out.writeByte(encodedData.getData(i));
+            }
+        }
+    }
+
+    // Restores the state written by write(...). Any pending data is placed and searched immediately,
+    // so this must be called before anything is submitted.
+    public synchronized void read(DataInput in) throws IOException
+    {
+        solver.read(in);
+
+        int count = Varints.readCount(in);
+        EncodedData encodedData = new EncodedData(LengthDecoder.MAX_SEQUENCE_LEN * 2);
+
+        for (int i = 0; i < count; i++)
+        {
+            encodedData.clear();
+
+            int lengthCount = Varints.readCount(in);
+
+            for (int j = 0; j < lengthCount; j++)
+            {
+                int length = Varints.readCount(in);
+
+                if (length > LengthDecoder.MAX_SEQUENCE_LEN)
+                {
+                    throw new IOException("length out of range: " + length);
+                }
+
+                encodedData.addLength(length);
+            }
+
+            int dataCount = Varints.readCount(in);
+
+            for (int j = 0; j < dataCount; j++)
+            {
+                encodedData.addData(in.readUnsignedByte());
+            }
+
+            solver.add(encodedData);
+        }
+
+        if (count > 0)
+        {
+            solver.search();
+        }
+
+        publish();
+    }
+
+    private void schedule()
+    {
+        if (scheduled.compareAndSet(false, true))
+        {
+            try
+            {
+                executor.execute(this);
+            }
+            catch (RejectedExecutionException e)
+            {
+                scheduled.set(false);
+                metrics.solveRejected();
+            }
+        }
+    }
+
+    private void publish()
+    {
+        if (solver.isSolved())
+        {
+            alternatives = solver.getAlternatives();
+        }
+    }
+
+    private static EncodedData copy(EncodedData encodedData)
+    {
+        EncodedData result = new EncodedData(Math.max(encodedData.getDataCount(), 1));
+
+        for (int i = 0; i < encodedData.getLengthCount(); i++)
+        {
+            result.addLength(encodedData.getLength(i));
+        }
+
+        for (int i = 0; i < encodedData.getDataCount(); i++)
+        {
+            result.addData(encodedData.getData(i));
+        }
+
+        return result;
+    }
+}
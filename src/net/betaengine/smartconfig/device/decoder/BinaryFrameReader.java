@@ -0,0 +1,220 @@
+/**
+ * Copyright 2013 George C. Hawkins
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.betaengine.smartconfig.device.decoder;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
+import java.util.concurrent.locks.LockSupport;
+
+// Reads the frames written by BinaryFrameWriter. By default frames are read as fast as possible,
+// if a speed is set then the frames are paced according to their timestamps, e.g. a speed of 1
+// replays them in real time and a speed of 10 replays them ten times faster than real time.
+public class BinaryFrameReader implements FrameReader
+{
+    private final static int BUFFER_SIZE = 64 * 1024;
+    private final static int INITIAL_DICTIONARY_SIZE = 1024;
+    private final static int METRICS_BATCH_SIZE = 4096;
+    private final static long UNKNOWN_BSSID = 0xFFFFFFFFFFFFL; // The broadcast address is never a BSSID.
+
+    private final static DecoderMetrics metrics = DecoderMetrics.getInstance();
+
+    private final ReadableByteChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private boolean endOfInput = false;
+
+    private long[] dictionary = new long[INITIAL_DICTIONARY_SIZE];
+    private int dictionarySize = 0;
+    private long micros = 0;
+    private int frequency = 0;
+
+    private double speed = 0;
+    private long parsedCount = 0;
+
+    public BinaryFrameReader(ReadableByteChannel channel)
+    {
+        this.channel = channel;
+        buffer.limit(0);
+    }
+
+    // Zero, the default, means frames are read without any pacing.
+    public void setSpeed(double speed) { this.speed = speed; }
+
+    @Override
+    public boolean read(FrameHandler handler) throws IOException
+    {
+        while (buffer.remaining() < 5 && !endOfInput)
+        {
+            fill();
+        }
+
+        if (buffer.remaining() < 5 || buffer.getInt() != BinaryFrameWriter.MAGIC)
+        {
+            throw new IOException("not a binary frame capture");
+        }
+
+        int version = buffer.get() & 0xFF;
+
+        if (version != BinaryFrameWriter.VERSION)
+        {
+            throw new IOException("unsupported binary frame capture version " + version);
+        }
+
+        long startNanos = System.nanoTime();
+
+        try
+        {
+            while (true)
+            {
+                // The state is saved so that a partially buffered record can be reread once more input arrives.
+                int start = buffer.position();
+                long startMicros = micros;
+                int startFrequency = frequency;
+                int startDictionarySize = dictionarySize;
+
+                long bssid;
+                long source;
+                long destination;
+                int length;
+
+                try
+                {
+                    micros += Varints.readUnsigned(buffer);
+
+                    long zigzag = Varints.readUnsigned(buffer);
+
+                    frequency += (int)((zigzag >>> 1) ^ -(zigzag & 1));
+
+                    bssid = getAddress();
+                    source = getAddress();
+                    destination = getAddress();
+                    length = (int)Varints.readUnsigned(buffer);
+                }
+                catch (BufferUnderflowException e)
+                {
+                    buffer.position(start);
+                    micros = startMicros;
+                    frequency = startFrequency;
+                    dictionarySize = startDictionarySize;
+
+                    // Any remaining bytes are a truncated final record, e.g. if the writer was killed.
+                    if (endOfInput)
+                    {
+                        return false;
+                    }
+
+                    fill();
+
+                    continue;
+                }
+
+                // An unknown BSSID is written, like any other address, masked to 48 bits.
+                if (bssid == UNKNOWN_BSSID)
+                {
+                    bssid = MacAddresses.INVALID;
+                }
+
+                if (speed > 0)
+                {
+                    pace(startNanos);
+                }
+
+                if (++parsedCount == METRICS_BATCH_SIZE)
+                {
+                    publishCounts();
+                }
+
+                if (handler.process(micros, bssid, frequency, source, destination, length))
+                {
+                    return true;
+                }
+            }
+        }
+        finally
+        {
+            publishCounts();
+        }
+    }
+
+    private void publishCounts()
+    {
+        metrics.framesParsed(parsedCount);
+        parsedCount = 0;
+    }
+
+    // Waits until the current frame is due, the first frame is due immediately.
+    private void pace(long startNanos)
+    {
+        long due = startNanos + (long)((micros * 1000) / speed);
+        long wait;
+
+        while ((wait = due - System.nanoTime()) > 0)
+        {
+            LockSupport.parkNanos(wait);
+        }
+    }
+
+    private long getAddress() throws IOException
+    {
+        long index = Varints.readUnsigned(buffer);
+
+        if (index < dictionarySize)
+        {
+            return dictionary[(int)index];
+        }
+
+        if (index != dictionarySize)
+        {
+            throw new IOException("invalid address index " + index + ", dictionary size " + dictionarySize);
+        }
+
+        long address = 0;
+
+        for (int i = 0; i < 6; i++)
+        {
+            address = (address << 8) | (buffer.get() & 0xFF);
+        }
+
+        if (dictionarySize == dictionary.length)
+        {
+            dictionary = Arrays.copyOf(dictionary, dictionarySize * 2);
+        }
+
+        dictionary[dictionarySize++] = address;
+
+        return address;
+    }
+
+    // Reads whatever input is available, blocking only until at least one byte arrives, so that frames
+    // from a capture that's still being written, e.g. a pipe, are handled as soon as they're written.
+    private void fill() throws IOException
+    {
+        buffer.compact();
+
+        int count = 0;
+
+        while (count == 0 && buffer.hasRemaining())
+        {
+            count = channel.read(buffer);
+        }
+
+        endOfInput = count == -1;
+
+        buffer.flip();
+    }
+}
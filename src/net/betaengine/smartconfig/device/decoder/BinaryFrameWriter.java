@@ -0,0 +1,144 @@
+/**
+ * Copyright 2013 George C. Hawkins
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.betaengine.smartconfig.device.decoder;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+// Writes frames in a compact binary form, typically 8 or 9 bytes per frame rather than the 60
+// or so of tshark's text output. The file starts with a magic number and version and then each
+// frame is a record of varints:
+//
+//     time since the previous frame (microseconds), change in frequency (zigzag encoded),
+//     BSSID, source and destination, length
+//
+// The addresses are indexes into a dictionary of the addresses seen so far. An index equal to
+// the current size of the dictionary introduces a new address, whose six bytes follow the index.
+// See BinaryFrameReader.
+public class BinaryFrameWriter implements FrameWriter
+{
+    final static int MAGIC = 0x53434652; // "SCFR".
+    final static int VERSION = 1;
+
+    // Five varints of at most 10 bytes each and three addresses.
+    final static int MAX_RECORD_LENGTH = (5 * 10) + (3 * (10 + 6));
+
+    private final static int BUFFER_SIZE = 64 * 1024;
+    private final static long ADDRESS_MASK = 0xFFFFFFFFFFFFL;
+
+    private final OutputStream output;
+    private final long intervalMicros;
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+
+    // Each address is used as the source of a key with a destination of zero.
+    private final LinkTable<Integer> dictionary = new LinkTable<>();
+    private long lastMicros = -1;
+    private int lastFrequency = 0;
+    private long frameCount = 0;
+
+    public BinaryFrameWriter(OutputStream output)
+    {
+        this(output, 0);
+    }
+
+    // If intervalMicros isn't 0 then frames are timestamped with a clock that advances by that amount
+    // for every frame, rather than with the time they're written, so the output is deterministic.
+    public BinaryFrameWriter(OutputStream output, long intervalMicros)
+    {
+        this.output = output;
+        this.intervalMicros = intervalMicros;
+
+        buffer.putInt(MAGIC);
+        buffer.put((byte)VERSION);
+    }
+
+    // By default the frame is timestamped with the time that it's written, so recording a live
+    // capture, e.g. one piped from tshark, preserves its timing.
+    @Override
+    public void write(long bssid, int frequency, long source, long destination, int length) throws IOException
+    {
+        long micros = (intervalMicros != 0) ? frameCount++ * intervalMicros : System.nanoTime() / 1000;
+
+        write(micros, bssid, frequency, source, destination, length);
+    }
+
+    public void write(long micros, long bssid, int frequency, long source, long destination, int length) throws IOException
+    {
+        if (length < 0)
+        {
+            throw new IllegalArgumentException("invalid length: " + length);
+        }
+
+        if (buffer.remaining() < MAX_RECORD_LENGTH)
+        {
+            flushBuffer();
+        }
+
+        // The first frame's delta is 0 and a clock that goes backwards is treated as standing still.
+        Varints.writeUnsigned(buffer, (lastMicros == -1) ? 0 : Math.max(micros - lastMicros, 0));
+        lastMicros = (lastMicros == -1) ? micros : Math.max(micros, lastMicros);
+
+        Varints.writeUnsigned(buffer, zigzag(frequency - lastFrequency));
+        lastFrequency = frequency;
+
+        putAddress(bssid);
+        putAddress(source);
+        putAddress(destination);
+        Varints.writeUnsigned(buffer, length);
+    }
+
+    @Override
+    public void flush() throws IOException
+    {
+        flushBuffer();
+        output.flush();
+    }
+
+    private void flushBuffer() throws IOException
+    {
+        output.write(buffer.array(), 0, buffer.position());
+        buffer.clear();
+    }
+
+    private void putAddress(long address)
+    {
+        address &= ADDRESS_MASK;
+
+        Integer index = dictionary.get(0, address, 0);
+
+        if (index != null)
+        {
+            Varints.writeUnsigned(buffer, index);
+            return;
+        }
+
+        int size = dictionary.size();
+
+        dictionary.put(0, address, 0, size);
+        Varints.writeUnsigned(buffer, size);
+
+        for (int shift = 40; shift >= 0; shift -= 8)
+        {
+            buffer.put((byte)(address >>> shift));
+        }
+    }
+
+    private static long zigzag(int value)
+    {
+        return ((long)value << 1) ^ (value >> 31);
+    }
+}
@@ -0,0 +1,126 @@
+/**
+ * Copyright 2013 George C. Hawkins
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.betaengine.smartconfig.device.decoder;
+
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.TimeUnit;
+
+// Runs a capture command, e.g. tshark, itself rather than relying on its output being piped in, and
+// reads frames from the command's standard output. If the command exits, or its output can't be
+// parsed, e.g. as it was killed part way through writing a pcap record, then it's restarted after a
+// delay that doubles, up to a limit, with each consecutive restart. A command that ran for a while
+// before exiting is restarted after the initial delay again.
+//
+// The command is run via "/bin/sh -c" so it can be a pipeline and can redirect its own stderr.
+// Anything it writes to stderr is passed through.
+public class CaptureSupervisor implements FrameReader
+{
+    public final static int UNLIMITED_RESTARTS = -1;
+
+    private final static long INITIAL_RESTART_DELAY = TimeUnit.SECONDS.toMillis(1);
+    private final static long MAX_RESTART_DELAY = TimeUnit.SECONDS.toMillis(30);
+    private final static long STABLE_RUN_TIME = TimeUnit.MINUTES.toMillis(1);
+
+    private final static DecoderMetrics metrics = DecoderMetrics.getInstance();
+
+    // Creates the reader for each run of the command, e.g. a TsvFrameReader or a PipelinedFrameReader.
+    public interface ReaderFactory
+    {
+        FrameReader create(ReadableByteChannel channel);
+    }
+
+    private final String command;
+    private final ReaderFactory factory;
+
+    private volatile int maxRestarts = UNLIMITED_RESTARTS;
+
+    public CaptureSupervisor(String command, ReaderFactory factory)
+    {
+        this.command = command;
+        this.factory = factory;
+    }
+
+    public void setMaxRestarts(int maxRestarts) { this.maxRestarts = maxRestarts; }
+
+    // Returns true if the handler asked to stop or false if the command exited and the maximum
+    // number of restarts has been reached. If the command can't be started at all then an
+    // IOException is thrown.
+    @Override
+    public boolean read(FrameHandler handler) throws IOException
+    {
+        long delay = INITIAL_RESTART_DELAY;
+        int restarts = 0;
+
+        while (true)
+        {
+            long start = System.currentTimeMillis();
+            Process process = new ProcessBuilder("/bin/sh", "-c", command).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+            String reason;
+
+            try (ReadableByteChannel channel = Channels.newChannel(process.getInputStream()))
+            {
+                if (factory.create(channel).read(handler))
+                {
+                    return true;
+                }
+
+                reason = "exited with status " + process.waitFor();
+            }
+            catch (IOException e)
+            {
+                reason = "failed: " + e.getMessage();
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                throw new IOException("interrupted while waiting for the capture command");
+            }
+            finally
+            {
+                process.destroy();
+            }
+
+            if (maxRestarts != UNLIMITED_RESTARTS && restarts >= maxRestarts)
+            {
+                System.err.println("Capture command " + reason);
+                return false;
+            }
+
+            if (System.currentTimeMillis() - start >= STABLE_RUN_TIME)
+            {
+                delay = INITIAL_RESTART_DELAY;
+            }
+
+            System.err.println("Capture command " + reason + ", restarting in " + delay + "ms");
+
+            try
+            {
+                Thread.sleep(delay);
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+
+            delay = Math.min(delay * 2, MAX_RESTART_DELAY);
+            restarts++;
+            metrics.captureRestarted();
+        }
+    }
+}
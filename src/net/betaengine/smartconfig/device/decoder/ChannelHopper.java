@@ -0,0 +1,234 @@
+/**
+ * Copyright 2013 George C. Hawkins
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.betaengine.smartconfig.device.decoder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+// Hops the capture interface through a set of channels, dwelling on each for a short time, using
+// the decoder metrics to decide when to stop hopping. If decoders are spawned on a channel while
+// it's tuned, i.e. a link there showed the separator pattern and a plausible offset, then the hopper
+// focuses on that channel, i.e. stays on it, until a solution is found there or the focus timeout
+// expires, whichever is first. A channel whose focus timed out can't be focused on again until
+// the same time has passed again, so a channel that spawns decoders but never produces a solution
+// gets at most half the time.
+//
+// Tuning is done via a Tuner, e.g. a CommandTuner that runs something like "iw dev wlan0 set freq",
+// and the per channel counts come from a ChannelActivity, by default the decoder metrics. hop(...)
+// does all the work, given the current time, so the schedule doesn't depend on run() and the whole
+// loop can be driven with a fake tuner, activity and clock (see HopperSimulation).
+public class ChannelHopper implements Runnable
+{
+    public final static long DEFAULT_DWELL = 250; // Milliseconds.
+    public final static long DEFAULT_FOCUS_TIMEOUT = TimeUnit.SECONDS.toMillis(30);
+
+    // The 2.4GHz channels 1 to 11, which are usable everywhere.
+    public final static int[] DEFAULT_FREQUENCIES = { 2412, 2417, 2422, 2427, 2432, 2437, 2442, 2447, 2452, 2457, 2462 };
+
+    public interface Tuner
+    {
+        void tune(int frequency) throws IOException;
+    }
+
+    // The running totals, per channel, that the hopper compares between calls to hop(...).
+    public interface ChannelActivity
+    {
+        long getDecodersSpawned(int frequency);
+
+        long getSolutions(int frequency);
+    }
+
+    private final int[] frequencies;
+    private final Tuner tuner;
+    private final ChannelActivity activity;
+    private final long[] focusEnded; // For each channel, when it last stopped being focused on.
+
+    private volatile long dwell = DEFAULT_DWELL;
+    private volatile long focusTimeout = DEFAULT_FOCUS_TIMEOUT;
+    private volatile boolean stopped = false;
+
+    private int current = -1; // The index of the channel currently tuned.
+    private long focusStart = 0; // Zero if the current channel isn't focused on.
+    private long decodersSpawned; // The current channel's counts when it was last checked.
+    private long solutions;
+
+    public ChannelHopper(int[] frequencies, Tuner tuner)
+    {
+        this(frequencies, tuner, new MetricsActivity());
+    }
+
+    public ChannelHopper(int[] frequencies, Tuner tuner, ChannelActivity activity)
+    {
+        if (frequencies.length == 0)
+        {
+            throw new IllegalArgumentException("no frequencies");
+        }
+
+        this.frequencies = frequencies.clone();
+        this.tuner = tuner;
+        this.activity = activity;
+        this.focusEnded = new long[frequencies.length];
+
+        Arrays.fill(focusEnded, Long.MIN_VALUE / 2);
+    }
+
+    public void setDwell(long millis) { this.dwell = millis; }
+
+    public void setFocusTimeout(long millis) { this.focusTimeout = millis; }
+
+    // Returns the frequency currently tuned, or 0 if none has been tuned yet.
+    public synchronized int getFrequency() { return (current < 0) ? 0 : frequencies[current]; }
+
+    public synchronized boolean isFocused() { return focusStart != 0; }
+
+    // Decides, given the current time, whether to stay on the current channel or to move on to the
+    // next and returns how long to wait before calling this again.
+    public synchronized long hop(long now)
+    {
+        if (current >= 0)
+        {
+            int frequency = frequencies[current];
+            long spawned = activity.getDecodersSpawned(frequency);
+            long solved = activity.getSolutions(frequency);
+            boolean newDecoders = spawned > decodersSpawned;
+            boolean newSolutions = solved > solutions;
+
+            decodersSpawned = spawned;
+            solutions = solved;
+
+            if (focusStart == 0)
+            {
+                // Decoders spawned alongside a solution are most likely just the tail of the session that
+                // was solved, so there's nothing left to focus on.
+                if (newDecoders && !newSolutions && now - focusEnded[current] >= focusTimeout)
+                {
+                    focusStart = now;
+
+                    return dwell;
+                }
+            }
+            else if (!newSolutions && now - focusStart < focusTimeout)
+            {
+                return dwell;
+            }
+            else
+            {
+                focusStart = 0;
+                focusEnded[current] = now;
+            }
+        }
+
+        current = (current + 1) % frequencies.length;
+
+        int frequency = frequencies[current];
+
+        decodersSpawned = activity.getDecodersSpawned(frequency);
+        solutions = activity.getSolutions(frequency);
+
+        try
+        {
+            tuner.tune(frequency);
+        }
+        catch (IOException e)
+        {
+            // Hopping carries on, if the channel can't be tuned, e.g. as it isn't allowed in this region,
+            // then the interface just stays on the previous channel for a further dwell.
+            System.err.println("Failed to tune to " + frequency + " MHz: " + e.getMessage());
+        }
+
+        return dwell;
+    }
+
+    @Override
+    public void run()
+    {
+        try
+        {
+            while (!stopped)
+            {
+                long wait = hop(System.currentTimeMillis());
+
+                if (wait > 0)
+                {
+                    Thread.sleep(wait);
+                }
+            }
+        }
+        catch (InterruptedException e)
+        {
+            // Stop hopping.
+        }
+    }
+
+    // Stops run(), the thread running it should also be interrupted so it doesn't finish its current dwell.
+    public void stop() { stopped = true; }
+
+    // The counts kept by the decoder metrics, i.e. those of every analyzer in this process.
+    public static class MetricsActivity implements ChannelActivity
+    {
+        private final static DecoderMetrics metrics = DecoderMetrics.getInstance();
+
+        @Override
+        public long getDecodersSpawned(int frequency) { return metrics.getChannelDecodersSpawned(frequency); }
+
+        @Override
+        public long getSolutions(int frequency) { return metrics.getChannelSolutions(frequency); }
+    }
+
+    // Tunes by running a shell command with the frequency, in MHz, appended, e.g. "iw dev wlan0 set freq".
+    // A non-zero exit status is treated as a failure to tune.
+    public static class CommandTuner implements Tuner
+    {
+        private final static ProcessBuilder.Redirect NO_INPUT = ProcessBuilder.Redirect.from(new File("/dev/null"));
+
+        private final String command;
+
+        public CommandTuner(String command)
+        {
+            this.command = command;
+        }
+
+        @Override
+        public void tune(int frequency) throws IOException
+        {
+            // The command's input is /dev/null, rather than inherited, so it can't consume any of a capture
+            // being piped into the decoder. Its output and errors still appear with the decoder's.
+            Process process = new ProcessBuilder("/bin/sh", "-c", command + " " + frequency)
+                .redirectInput(NO_INPUT)
+                .redirectOutput(ProcessBuilder.Redirect.INHERIT)
+                .redirectError(ProcessBuilder.Redirect.INHERIT)
+                .start();
+
+            try
+            {
+                int status = process.waitFor();
+
+                if (status != 0)
+                {
+                    throw new IOException("\"" + command + " " + frequency + "\" exited with status " + status);
+                }
+            }
+            catch (InterruptedException e)
+            {
+                process.destroy();
+                Thread.currentThread().interrupt();
+                throw new IOException("interrupted while tuning");
+            }
+        }
+    }
+}
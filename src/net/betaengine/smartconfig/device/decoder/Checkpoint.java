@@ -0,0 +1,160 @@
+/**
+ * Copyright 2013 George C. Hawkins
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.betaengine.smartconfig.device.decoder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.zip.CRC32;
+
+// A checkpoint file holds the state of every link being decoded, as written by Analyzer.checkpoint(),
+// so that a restarted decoder can carry on from where it left off rather than having to wait for
+// the sender to repeat everything that it had already seen. With ParallelAnalyzer each worker's
+// analyzer writes its own part, on restore each link is routed to whichever worker now owns it.
+//
+// The file is the magic number and version, the number of parts, the parts and then a CRC of
+// everything before it. A new checkpoint is written to a temporary file that's then renamed over
+// the old one so a crash while writing never leaves a partial checkpoint.
+public class Checkpoint
+{
+    private final static int MAGIC = 0x53434350; // "SCCP".
+    private final static int VERSION = 2;
+
+    // Links are restored in two steps so that a checkpoint that turns out to be invalid part way through
+    // doesn't leave the restorer with only some of its links.
+    public interface Restorer
+    {
+        // Reads, but doesn't yet apply, the link whose state, written by Analyzer.checkpoint(), follows in the input.
+        void restore(long partition, long source, long destination, DataInput in) throws IOException;
+
+        // Called once the whole checkpoint has been read, applies the links read if successful, otherwise discards them.
+        void finishRestore(boolean success);
+    }
+
+    private Checkpoint() { }
+
+    public static void write(File file, List<byte[]> parts) throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+
+        out.writeInt(MAGIC);
+        out.writeByte(VERSION);
+        Varints.writeUnsigned(out, parts.size());
+
+        for (byte[] part : parts)
+        {
+            out.write(part);
+        }
+
+        CRC32 crc = new CRC32();
+
+        crc.update(bytes.toByteArray());
+        out.writeInt((int)crc.getValue());
+
+        File temp = new File(file.getPath() + ".tmp");
+
+        try (FileOutputStream stream = new FileOutputStream(temp))
+        {
+            bytes.writeTo(stream);
+            stream.getChannel().force(true);
+        }
+
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // Returns the number of links restored. If the file is corrupt, or isn't a checkpoint, then an
+    // IOException is thrown and nothing is restored. The CRC is checked before any links are read but
+    // a link's state is only checked as it's read, so the links are only applied once all have been read.
+    public static int read(File file, Restorer restorer) throws IOException
+    {
+        byte[] bytes = Files.readAllBytes(file.toPath());
+        int length = bytes.length - 4;
+        CRC32 crc = new CRC32();
+
+        if (length < 5)
+        {
+            throw new IOException(file + " is too short to be a checkpoint");
+        }
+
+        crc.update(bytes, 0, length);
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+
+        if (in.readInt() != MAGIC)
+        {
+            throw new IOException(file + " is not a checkpoint");
+        }
+
+        int version = in.readUnsignedByte();
+
+        if (version != VERSION)
+        {
+            throw new IOException(file + " has unsupported version " + version);
+        }
+
+        if (new DataInputStream(new ByteArrayInputStream(bytes, length, 4)).readInt() != (int)crc.getValue())
+        {
+            throw new IOException(file + " is corrupt");
+        }
+
+        int linkCount = 0;
+        boolean success = false;
+
+        try
+        {
+            int partCount = Varints.readCount(in);
+
+            for (int i = 0; i < partCount; i++)
+            {
+                int count = Varints.readCount(in);
+
+                for (int j = 0; j < count; j++)
+                {
+                    long bssid = MacAddresses.read(in);
+                    int frequency = Varints.readCount(in);
+                    long source = MacAddresses.read(in);
+                    long destination = MacAddresses.read(in);
+
+                    restorer.restore(Partitions.of(bssid, frequency), source, destination, in);
+                }
+
+                linkCount += count;
+            }
+
+            success = true;
+        }
+        catch (EOFException e)
+        {
+            throw new IOException(file + " ends part way through a link");
+        }
+        finally
+        {
+            restorer.finishRestore(success);
+        }
+
+        return linkCount;
+    }
+}
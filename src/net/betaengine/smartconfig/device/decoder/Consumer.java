@@ -15,29 +15,297 @@
  */
 package net.betaengine.smartconfig.device.decoder;
 
-import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileReader;
-import java.io.InputStreamReader;
-import java.io.Reader;
+import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Collections;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
 
 public class Consumer
 {
-    // Currently we ignore the BSSID and channel information in positions 0 and 1.
-    private final static int SOURCE = 2;
-    private final static int DESTINATION = 3;
-    private final static int LENGTH = 4;
+    private final static String CONTINUOUS_OPTION = "--continuous";
+    private final static String THREADS_OPTION = "--threads";
+    private final static String PCAP_OPTION = "--pcap";
+    private final static String METRICS_OPTION = "--metrics";
+    private final static String MEMORY_BUDGET_OPTION = "--memory-budget";
+    private final static String IDLE_TIMEOUT_OPTION = "--idle-timeout";
+    private final static String PIPELINE_OPTION = "--pipeline";
+    private final static String SOLVER_THREADS_OPTION = "--solver-threads";
+    private final static String CHECKPOINT_OPTION = "--checkpoint";
+    private final static String CHECKPOINT_INTERVAL_OPTION = "--checkpoint-interval";
+    private final static String OFFLINE_OPTION = "--offline";
+    private final static String CAPTURE_OPTION = "--capture";
+    private final static String CAPTURE_RESTARTS_OPTION = "--capture-restarts";
+    private final static String CHANNEL_COMMAND_OPTION = "--channel-command";
+    private final static String CHANNELS_OPTION = "--channels";
+    private final static String DWELL_OPTION = "--dwell";
+    private final static String FOCUS_TIMEOUT_OPTION = "--focus-timeout";
+
+    private final static int DEFAULT_CHECKPOINT_INTERVAL = 30; // Seconds.
+    
+    private final boolean continuous;
+    private final FrameHandler analyzer;
+    private final ParallelAnalyzer parallelAnalyzer;
+    private final Analyzer singleAnalyzer;
+    private final OfflineAnalyzer offlineAnalyzer;
+    private final ExecutorService solverExecutor;
+    private int solutionCount = 0;
+    private Timer metricsTimer = null;
+    private Timer checkpointTimer = null;
+    private File checkpointFile = null;
+    private Thread hopperThread = null;
+    private ChannelHopper hopper = null;
     
-    private final Analyzer analyzer = new Analyzer();
+    // If offline then threadCount is the parallelism of the offline analysis, if it's 0 then all processors are used.
+    public Consumer(boolean continuous, int threadCount, long memoryBudget, long idleTimeout, int solverThreadCount, boolean offline)
+    {
+        SolutionListener listener = new SolutionListener()
+        {
+            @Override
+            public void solved(Solution solution)
+            {
+                report(solution);
+            }
+        };
+        
+        this.continuous = continuous;
+        this.solverExecutor = (solverThreadCount > 0) ? AsyncSolver.createExecutor(solverThreadCount) : null;
+        
+        if (offline)
+        {
+            offlineAnalyzer = new OfflineAnalyzer(threadCount > 0 ? threadCount : Runtime.getRuntime().availableProcessors(), listener);
+            offlineAnalyzer.setMemoryBudget(memoryBudget);
+            parallelAnalyzer = null;
+            singleAnalyzer = null;
+            analyzer = null;
+        }
+        else if (threadCount > 1)
+        {
+            parallelAnalyzer = new ParallelAnalyzer(threadCount, listener);
+            parallelAnalyzer.setMemoryBudget(memoryBudget);
+            parallelAnalyzer.setIdleTimeout(idleTimeout);
+            parallelAnalyzer.setSolverExecutor(solverExecutor);
+            singleAnalyzer = null;
+            offlineAnalyzer = null;
+            analyzer = parallelAnalyzer;
+        }
+        else
+        {
+            singleAnalyzer = new Analyzer(listener);
+            singleAnalyzer.setMemoryBudget(memoryBudget);
+            singleAnalyzer.setIdleTimeout(idleTimeout);
+            singleAnalyzer.setSolverExecutor(solverExecutor);
+            parallelAnalyzer = null;
+            offlineAnalyzer = null;
+            analyzer = singleAnalyzer;
+        }
+    }
 
+    // By default the consumer exits once it has decoded a single SSID and keyphrase. In continuous mode
+    // it instead runs until its input is exhausted, decoding any number of sessions on any number of links.
+    // By default all analysis is done on the thread reading the input, if more than one thread is specified
+    // then links are shared out between that many analyzer threads.
+    // The decoder metrics are always available via JMX, if an interval is specified then they're
+    // also written to stderr at that interval, for use where JMX isn't an option.
+    // Links that are idle for longer than the idle timeout are forgotten, as are the least promising
+    // links if the memory used to track links exceeds the memory budget.
+    // If pipelining is specified then reading, parsing and analysis are each done on their own thread,
+    // with the parser either blocking or dropping frames if analysis falls behind.
+    // If solver threads are specified then solving is done on that many threads, rather than by the
+    // analyzer threads, so that a long solve never holds up the analysis of further frames.
+    // If a checkpoint file is specified then the state of the links being decoded is restored from it,
+    // if it exists, and is written to it at the checkpoint interval and once the scan finishes.
+    // In offline mode a TSV file, rather than a stream, is analyzed. The file is memory mapped and split
+    // into chunks that are parsed in parallel and then the links are analyzed in parallel. The thread
+    // count then sets the number of threads used, by default all processors are used.
+    // If a capture command is specified then it's run, and restarted if it exits, by the consumer,
+    // rather than its output being piped in. If a channel command is specified then the consumer hops
+    // between the given channels, running the command to tune each one, and focuses on any channel
+    // where decoders are spawned until it produces a solution or the focus timeout expires.
     public static void main(String[] args)
     {
+        boolean continuous = false;
+        boolean pcap = false;
+        boolean offline = false;
+        int threadCount = 0;
+        int solverThreadCount = 0;
+        int checkpointInterval = DEFAULT_CHECKPOINT_INTERVAL;
+        File checkpointFile = null;
+        int metricsInterval = 0;
+        long memoryBudget = Analyzer.DEFAULT_MEMORY_BUDGET;
+        long idleTimeout = Analyzer.DEFAULT_IDLE_TIMEOUT;
+        PipelinedFrameReader.Backpressure backpressure = null;
+        String filename = null;
+        String captureCommand = null;
+        int captureRestarts = CaptureSupervisor.UNLIMITED_RESTARTS;
+        String channelCommand = null;
+        int[] frequencies = ChannelHopper.DEFAULT_FREQUENCIES;
+        long dwell = ChannelHopper.DEFAULT_DWELL;
+        long focusTimeout = ChannelHopper.DEFAULT_FOCUS_TIMEOUT;
+        
+        try
+        {
+            for (int i = 0; i < args.length; i++)
+            {
+                if (args[i].equals(CONTINUOUS_OPTION))
+                {
+                    continuous = true;
+                }
+                else if (args[i].equals(PCAP_OPTION))
+                {
+                    pcap = true;
+                }
+                else if (args[i].equals(OFFLINE_OPTION))
+                {
+                    offline = true;
+                }
+                else if (args[i].equals(THREADS_OPTION) && i + 1 < args.length)
+                {
+                    threadCount = Integer.parseInt(args[++i]);
+                }
+                else if (args[i].equals(SOLVER_THREADS_OPTION) && i + 1 < args.length)
+                {
+                    solverThreadCount = Integer.parseInt(args[++i]);
+                }
+                else if (args[i].equals(CHECKPOINT_OPTION) && i + 1 < args.length)
+                {
+                    checkpointFile = new File(args[++i]);
+                }
+                else if (args[i].equals(CHECKPOINT_INTERVAL_OPTION) && i + 1 < args.length)
+                {
+                    checkpointInterval = Integer.parseInt(args[++i]);
+
+                    if (checkpointInterval <= 0)
+                    {
+                        usage();
+                    }
+                }
+                else if (args[i].equals(METRICS_OPTION) && i + 1 < args.length)
+                {
+                    metricsInterval = Integer.parseInt(args[++i]);
+                }
+                else if (args[i].equals(MEMORY_BUDGET_OPTION) && i + 1 < args.length)
+                {
+                    memoryBudget = Long.parseLong(args[++i]) * 1024 * 1024;
+                }
+                else if (args[i].equals(IDLE_TIMEOUT_OPTION) && i + 1 < args.length)
+                {
+                    idleTimeout = TimeUnit.SECONDS.toMillis(Long.parseLong(args[++i]));
+                }
+                else if (args[i].equals(PIPELINE_OPTION) && i + 1 < args.length)
+                {
+                    backpressure = PipelinedFrameReader.Backpressure.valueOf(args[++i].toUpperCase());
+                }
+                else if (args[i].equals(CAPTURE_OPTION) && i + 1 < args.length)
+                {
+                    captureCommand = args[++i];
+                }
+                else if (args[i].equals(CAPTURE_RESTARTS_OPTION) && i + 1 < args.length)
+                {
+                    captureRestarts = Integer.parseInt(args[++i]);
+                }
+                else if (args[i].equals(CHANNEL_COMMAND_OPTION) && i + 1 < args.length)
+                {
+                    channelCommand = args[++i];
+                }
+                else if (args[i].equals(CHANNELS_OPTION) && i + 1 < args.length)
+                {
+                    frequencies = parseFrequencies(args[++i]);
+                }
+                else if (args[i].equals(DWELL_OPTION) && i + 1 < args.length)
+                {
+                    dwell = Long.parseLong(args[++i]);
+                }
+                else if (args[i].equals(FOCUS_TIMEOUT_OPTION) && i + 1 < args.length)
+                {
+                    focusTimeout = TimeUnit.SECONDS.toMillis(Long.parseLong(args[++i]));
+                }
+                else if (filename == null && !args[i].startsWith("--"))
+                {
+                    filename = args[i];
+                }
+                else
+                {
+                    usage();
+                }
+            }
+        }
+        catch (IllegalArgumentException e) // Includes NumberFormatException.
+        {
+            usage();
+        }
+
+        // Offline analysis needs the whole of a TSV file up front and is always done in a single pass.
+        if (offline && (filename == null || pcap || backpressure != null || checkpointFile != null || solverThreadCount > 0 ||
+            captureCommand != null || channelCommand != null))
+        {
+            usage();
+        }
+
+        // A capture command replaces reading from a file or stdin.
+        if (captureCommand != null && filename != null)
+        {
+            usage();
+        }
+        
         try
         {
-            Consumer consumer = new Consumer();
-            Reader input = (args.length == 0) ? new InputStreamReader(System.in) : new FileReader(args[0]);
+            Consumer consumer = new Consumer(continuous, threadCount, memoryBudget, idleTimeout, solverThreadCount, offline);
+
+            DecoderMetrics.register();
+
+            if (checkpointFile != null)
+            {
+                consumer.startCheckpoints(checkpointFile, checkpointInterval);
+            }
+
+            if (metricsInterval > 0)
+            {
+                consumer.startMetricsTimer(metricsInterval);
+            }
+
+            if (offline)
+            {
+                consumer.consumeOffline(new File(filename));
+                return;
+            }
+
+            if (channelCommand != null)
+            {
+                consumer.startHopping(new ChannelHopper(frequencies, new ChannelHopper.CommandTuner(channelCommand)), dwell, focusTimeout);
+            }
+
+            final boolean pcapInput = pcap;
+            final PipelinedFrameReader.Backpressure pipelineBackpressure = backpressure;
+
+            if (captureCommand != null)
+            {
+                CaptureSupervisor supervisor = new CaptureSupervisor(captureCommand, new CaptureSupervisor.ReaderFactory()
+                {
+                    @Override
+                    public FrameReader create(ReadableByteChannel channel)
+                    {
+                        return createReader(channel, pcapInput, pipelineBackpressure);
+                    }
+                });
+
+                supervisor.setMaxRestarts(captureRestarts);
+                consumer.consume(null, supervisor);
+                return;
+            }
+
+            FileInputStream stream = (filename == null) ? new FileInputStream(FileDescriptor.in) : new FileInputStream(filename);
+            
+            ReadableByteChannel input = stream.getChannel();
             
-            consumer.consume(input);
+            consumer.consume(input, createReader(input, pcap, backpressure));
         }
         catch (FileNotFoundException e)
         {
@@ -46,26 +314,224 @@ public class Consumer
         }
     }
     
-    private void consume(Reader input)
+    // If backpressure is specified then the returned reader is pipelined.
+    private static FrameReader createReader(ReadableByteChannel channel, final boolean pcap, PipelinedFrameReader.Backpressure backpressure)
+    {
+        if (backpressure != null)
+        {
+            return new PipelinedFrameReader(channel, backpressure)
+            {
+                @Override
+                protected FrameReader createParser(ReadableByteChannel channel)
+                {
+                    return createReader(channel, pcap, null);
+                }
+            };
+        }
+
+        return pcap ? new PcapFrameReader(channel) : new TsvFrameReader(channel);
+    }
+
+    // Parses a comma separated list of frequencies in MHz.
+    private static int[] parseFrequencies(String s)
+    {
+        String[] values = s.split(",");
+        int[] result = new int[values.length];
+
+        for (int i = 0; i < values.length; i++)
+        {
+            result[i] = Integer.parseInt(values[i].trim());
+
+            if (result[i] <= 0)
+            {
+                throw new IllegalArgumentException("invalid frequency: " + values[i]);
+            }
+        }
+
+        return result;
+    }
+    
+    private static void usage()
+    {
+        System.err.println("Usage: java " + Consumer.class.getName() +
+            " [" + CONTINUOUS_OPTION + "] [" + THREADS_OPTION + " count] [" + PCAP_OPTION + "] [" + METRICS_OPTION + " seconds]" +
+            " [" + MEMORY_BUDGET_OPTION + " megabytes] [" + IDLE_TIMEOUT_OPTION + " seconds]" +
+            " [" + PIPELINE_OPTION + " block|drop] [" + SOLVER_THREADS_OPTION + " count]" +
+            " [" + CHECKPOINT_OPTION + " file [" + CHECKPOINT_INTERVAL_OPTION + " seconds]]" +
+            " [" + CHANNEL_COMMAND_OPTION + " command [" + CHANNELS_OPTION + " mhz,...] [" + DWELL_OPTION + " milliseconds] [" + FOCUS_TIMEOUT_OPTION + " seconds]]" +
+            " [file | " + OFFLINE_OPTION + " file | " + CAPTURE_OPTION + " command [" + CAPTURE_RESTARTS_OPTION + " count]]");
+        System.exit(1);
+    }
+    
+    private void startHopping(ChannelHopper channelHopper, long dwell, long focusTimeout)
+    {
+        hopper = channelHopper;
+        hopper.setDwell(dwell);
+        hopper.setFocusTimeout(focusTimeout);
+        hopperThread = new Thread(hopper, "channel-hopper");
+        hopperThread.setDaemon(true);
+        hopperThread.start();
+    }
+
+    private void startMetricsTimer(int seconds)
+    {
+        long period = TimeUnit.SECONDS.toMillis(seconds);
+
+        metricsTimer = new Timer("metrics", true);
+        metricsTimer.schedule(new TimerTask()
+        {
+            @Override
+            public void run()
+            {
+                printMetrics();
+            }
+        }, period, period);
+    }
+
+    private void startCheckpoints(final File file, int seconds)
+    {
+        long period = TimeUnit.SECONDS.toMillis(seconds);
+
+        checkpointFile = file;
+
+        if (file.exists())
+        {
+            long start = System.nanoTime();
+
+            try
+            {
+                int count = Checkpoint.read(file, (parallelAnalyzer != null) ? parallelAnalyzer : singleAnalyzer);
+
+                System.err.println("Restored " + count + " link(s) from " + file + " in " +
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + "ms");
+            }
+            catch (IOException e)
+            {
+                System.err.println("Ignoring checkpoint: " + e.getMessage());
+            }
+        }
+
+        if (parallelAnalyzer != null)
+        {
+            parallelAnalyzer.setCheckpointInterval(period);
+        }
+        else
+        {
+            singleAnalyzer.setCheckpointInterval(period);
+        }
+
+        checkpointTimer = new Timer("checkpoint", true);
+        checkpointTimer.schedule(new TimerTask()
+        {
+            @Override
+            public void run()
+            {
+                writeCheckpoint(getLatestCheckpoints());
+            }
+        }, period, period);
+    }
+
+    private List<byte[]> getLatestCheckpoints()
+    {
+        if (parallelAnalyzer != null)
+        {
+            return parallelAnalyzer.getLatestCheckpoints();
+        }
+
+        byte[] checkpoint = singleAnalyzer.getLatestCheckpoint();
+
+        return (checkpoint != null) ? Collections.singletonList(checkpoint) : Collections.<byte[]>emptyList();
+    }
+
+    // Called on the checkpoint timer's thread and, once the scan has finished, on the main thread.
+    private synchronized void writeCheckpoint(List<byte[]> checkpoints)
+    {
+        if (checkpoints.isEmpty())
+        {
+            return;
+        }
+
+        try
+        {
+            Checkpoint.write(checkpointFile, checkpoints);
+        }
+        catch (IOException e)
+        {
+            System.err.println("Failed to write checkpoint: " + e.getMessage());
+        }
+    }
+
+    private static void printMetrics()
+    {
+        System.err.println("Metrics " + DecoderMetrics.getInstance().getSnapshot());
+    }
+
+    private void consume(ReadableByteChannel input, FrameReader reader)
     {
         try
         {
-            BufferedReader reader = new BufferedReader(input);
-            String line;
-            boolean found = false;
+            if (continuous)
+            {
+                reader.read(new FrameHandler()
+                {
+                    @Override
+                    public boolean process(long micros, long bssid, int frequency, long source, long destination, int length)
+                    {
+                        analyzer.process(micros, bssid, frequency, source, destination, length);
+                        
+                        return false; // Never stop early.
+                    }
+                });
+            }
+            else
+            {
+                reader.read(analyzer);
+            }
             
-            while ((line = reader.readLine()) != null)
+            if (parallelAnalyzer != null)
+            {
+                parallelAnalyzer.shutdown();
+            }
+
+            // Any solving still in progress is allowed to finish and its solutions reported.
+            if (solverExecutor != null)
+            {
+                solverExecutor.shutdown();
+                solverExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            }
+
+            // This also publishes the counts that the analyzers batch up, so the final metrics are complete.
+            if (parallelAnalyzer != null)
+            {
+                parallelAnalyzer.flush();
+            }
+            else
+            {
+                singleAnalyzer.flush();
+            }
+
+            if (checkpointTimer != null)
             {
-                if (handle(line))
+                checkpointTimer.cancel();
+
+                if (parallelAnalyzer != null)
                 {
-                    found = true;
-                    break;
+                    parallelAnalyzer.checkpoint();
                 }
+                else
+                {
+                    singleAnalyzer.checkpoint();
+                }
+
+                writeCheckpoint(getLatestCheckpoints());
+            }
+
+            finish();
+
+            if (input != null)
+            {
+                input.close();
             }
-            
-            System.err.println("Scan " + (found ? "succeeded" : "failed"));
-            
-            reader.close();
         }
         catch (Exception e)
         {
@@ -73,20 +539,59 @@ public class Consumer
             System.exit(1);
         }
     }
-    
-    private boolean handle(String frame)
+
+    private void consumeOffline(File file)
     {
-        String[] tokens = frame.split("\\t");
-        
-        if (tokens.length != 5) return false;
-        
-        for (String s : tokens)
+        try
+        {
+            offlineAnalyzer.analyze(file);
+            offlineAnalyzer.shutdown();
+            finish();
+        }
+        catch (Exception e)
+        {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    private void finish()
+    {
+        if (hopper != null)
         {
-            if (s.isEmpty()) return false;
+            hopper.stop();
+            hopperThread.interrupt();
+        }
+
+        if (metricsTimer != null)
+        {
+            metricsTimer.cancel();
+            printMetrics();
         }
         
-        int length = Integer.parseInt(tokens[LENGTH]);
+        if (continuous)
+        {
+            System.err.println("Scan finished, " + solutionCount + " solution(s) found");
+        }
+        else
+        {
+            System.err.println("Scan " + (solutionCount > 0 ? "succeeded" : "failed"));
+        }
+    }
+    
+    // When analysis is parallel this is called on the analyzer threads, but never concurrently.
+    private void report(Solution solution)
+    {
+        if (continuous)
+        {
+            System.err.println("Solved " + solution);
+        }
+        else if (solutionCount == 0)
+        {
+            System.err.println("Solved SSID: " + Solution.format(solution.getSsidAlternatives()));
+            System.err.println("Solved keyphrase: " + Solution.format(solution.getKeyphraseAlternatives()));
+        }
         
-        return analyzer.process(tokens[SOURCE], tokens[DESTINATION], length);
+        solutionCount++;
     }
 }
@@ -0,0 +1,473 @@
+/**
+ * Copyright 2013 George C. Hawkins
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.betaengine.smartconfig.device.decoder;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+// Process wide decoder metrics. They can be read via JMX, once register() has been called,
+// or without JMX via getSnapshot(). Per frame counts are accumulated locally by the frame
+// readers and added here in batches, everything else is recorded here directly but only
+// happens when links, decoders or solutions change so the cost is negligible.
+public class DecoderMetrics implements DecoderMetricsMBean
+{
+    public final static String OBJECT_NAME = "net.betaengine.smartconfig:type=DecoderMetrics";
+
+    private final static DecoderMetrics INSTANCE = new DecoderMetrics();
+
+    // The indexes of the per channel counts.
+    private final static int CHANNEL_FRAMES = 0;
+    private final static int CHANNEL_PROMOTED = 1;
+    private final static int CHANNEL_DECODERS = 2;
+    private final static int CHANNEL_SOLVED = 3;
+    private final static int CHANNEL_COUNTS = 4;
+
+    private final AtomicLong framesParsed = new AtomicLong();
+    private final AtomicLong framesRejected = new AtomicLong();
+    private final AtomicLong framesDropped = new AtomicLong();
+    private final AtomicLong pipelineStalls = new AtomicLong();
+    private final AtomicLong activeLinks = new AtomicLong();
+    private final AtomicLong linksEvictedIdle = new AtomicLong();
+    private final AtomicLong linksEvictedForMemory = new AtomicLong();
+    private final AtomicLong activeLinkManagers = new AtomicLong();
+    private final AtomicLong linkManagersCreated = new AtomicLong();
+    private final AtomicLong activeLengthDecoders = new AtomicLong();
+    private final AtomicLong lengthDecodersSpawned = new AtomicLong();
+    private final AtomicLong lengthDecodersEvicted = new AtomicLong();
+    private final AtomicLong speculativeDecodersSkipped = new AtomicLong();
+    private final AtomicLong linkMemory = new AtomicLong();
+    private final AtomicLong maxLinkMemory = new AtomicLong();
+    private final AtomicLong solverInvocations = new AtomicLong();
+    private final AtomicLong solvesSuperseded = new AtomicLong();
+    private final AtomicLong solvesRejected = new AtomicLong();
+    private final AtomicLong ambiguousSolves = new AtomicLong();
+    private final AtomicLong solutions = new AtomicLong();
+    private final AtomicLong captureRestarts = new AtomicLong();
+    private final Histogram solveTime = new Histogram();
+    private final Histogram timeToSolve = new Histogram();
+
+    // Keyed by frequency in MHz, 0 if unknown. Entries are only ever added so a channel's counts can be
+    // updated without locking once it has been seen.
+    private final ConcurrentMap<Integer, AtomicLongArray> channels = new ConcurrentHashMap<>();
+
+    // The frame rates are measured over roughly the last RATE_SAMPLES seconds. The frames parsed and
+    // rejected so far are sampled as counts are added, at most once a second, so reading a rate changes
+    // nothing.
+    private final static int RATE_SAMPLES = 8;
+    private final static long RATE_SAMPLE_INTERVAL = 1000000000; // One second, in nanoseconds.
+
+    private final long[] sampleNanos = new long[RATE_SAMPLES];
+    private final long[] sampleFrames = new long[RATE_SAMPLES];
+    private final long[] sampleRejected = new long[RATE_SAMPLES];
+    private int sampleCount = 1; // The first sample is the start, with no frames.
+    private int sampleNext = 1;
+    private volatile long nextSample;
+
+    private DecoderMetrics()
+    {
+        sampleNanos[0] = System.nanoTime();
+        nextSample = sampleNanos[0] + RATE_SAMPLE_INTERVAL;
+    }
+
+    public static DecoderMetrics getInstance() { return INSTANCE; }
+
+    // Returns false if the metrics couldn't be registered, e.g. if they already have been.
+    public static boolean register()
+    {
+        try
+        {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(INSTANCE, new ObjectName(OBJECT_NAME));
+
+            return true;
+        }
+        catch (JMException e)
+        {
+            return false;
+        }
+    }
+
+    public void framesParsed(long count)
+    {
+        framesParsed.addAndGet(count);
+        sampleFrames();
+    }
+
+    private void sampleFrames()
+    {
+        long now = System.nanoTime();
+
+        if (now - nextSample >= 0)
+        {
+            sampleFrames(now);
+        }
+    }
+
+    private synchronized void sampleFrames(long now)
+    {
+        if (now - nextSample < 0)
+        {
+            return; // Another thread got here first.
+        }
+
+        sampleNanos[sampleNext] = now;
+        sampleFrames[sampleNext] = framesParsed.get();
+        sampleRejected[sampleNext] = framesRejected.get();
+        sampleNext = (sampleNext + 1) % RATE_SAMPLES;
+        sampleCount = Math.min(sampleCount + 1, RATE_SAMPLES);
+        nextSample = now + RATE_SAMPLE_INTERVAL;
+    }
+
+    public void framesRejected(long count)
+    {
+        framesRejected.addAndGet(count);
+        sampleFrames();
+    }
+
+    // Records frames that were parsed but dropped, rather than analyzed, as the analyzer was falling behind.
+    public void framesDropped(long count) { framesDropped.addAndGet(count); }
+
+    // Records the parser having to wait for the analyzer to catch up.
+    public void pipelineStalled() { pipelineStalls.incrementAndGet(); }
+
+    // Links are counted locally, by each analyzer, and published in batches.
+    public void linksChanged(long created, long removed)
+    {
+        if (created != removed)
+        {
+            activeLinks.addAndGet(created - removed);
+        }
+    }
+
+    public void linkEvictedIdle() { linksEvictedIdle.incrementAndGet(); }
+
+    public void linkEvictedForMemory() { linksEvictedForMemory.incrementAndGet(); }
+
+    public void linkManagerCreated()
+    {
+        linkManagersCreated.incrementAndGet();
+        activeLinkManagers.incrementAndGet();
+    }
+
+    public void linkManagerRemoved() { activeLinkManagers.decrementAndGet(); }
+
+    public void lengthDecoderCreated()
+    {
+        lengthDecodersSpawned.incrementAndGet();
+        activeLengthDecoders.incrementAndGet();
+    }
+
+    public void lengthDecodersRemoved(int count) { activeLengthDecoders.addAndGet(-count); }
+
+    // Records a decoder being discarded, as unproductive, rather than retired after a solution.
+    public void lengthDecoderEvicted() { lengthDecodersEvicted.incrementAndGet(); }
+
+    // Records a decoder not being spawned as its offset didn't match the estimated offset of its BSS, see OffsetEstimator.
+    public void speculativeDecoderSkipped() { speculativeDecodersSkipped.incrementAndGet(); }
+
+    // Records a change in the approximate number of bytes used to track a link.
+    public void linkMemoryChanged(long previous, long current)
+    {
+        linkMemory.addAndGet(current - previous);
+
+        long max;
+
+        while (current > (max = maxLinkMemory.get()) && !maxLinkMemory.compareAndSet(max, current))
+        {
+            // Retry.
+        }
+    }
+
+    // Records the time spent placing the new data and walking the candidates.
+    public void solverInvoked(long nanos)
+    {
+        solverInvocations.incrementAndGet();
+        solveTime.record(nanos);
+    }
+
+    // Records a search being abandoned as newer data for the same solver had arrived.
+    public void solveSuperseded() { solvesSuperseded.incrementAndGet(); }
+
+    // Records a solve not being scheduled as the solver executor was saturated.
+    public void solveRejected() { solvesRejected.incrementAndGet(); }
+
+    // Records a value being solved despite the search finding other, less well supported, solutions.
+    public void solvedAmbiguously() { ambiguousSolves.incrementAndGet(); }
+
+    // Records the time from the first decoder being spawned on a link to its SSID and keyphrase being solved.
+    public void sessionSolved(long nanos)
+    {
+        solutions.incrementAndGet();
+        timeToSolve.record(nanos);
+    }
+
+    // Records frames analyzed on the given channel.
+    public void channelFrames(int frequency, long count) { getChannel(frequency).addAndGet(CHANNEL_FRAMES, count); }
+
+    // Records a link on the given channel showing the separator pattern and so being promoted out of the sketch.
+    public void channelPromoted(int frequency) { getChannel(frequency).incrementAndGet(CHANNEL_PROMOTED); }
+
+    public void channelDecoderSpawned(int frequency) { getChannel(frequency).incrementAndGet(CHANNEL_DECODERS); }
+
+    public void channelSolved(int frequency) { getChannel(frequency).incrementAndGet(CHANNEL_SOLVED); }
+
+    // Records the capture command being restarted after it exited, see CaptureSupervisor.
+    public void captureRestarted() { captureRestarts.incrementAndGet(); }
+
+    private AtomicLongArray getChannel(int frequency)
+    {
+        AtomicLongArray counts = channels.get(frequency);
+
+        if (counts == null)
+        {
+            AtomicLongArray created = new AtomicLongArray(CHANNEL_COUNTS);
+
+            counts = channels.putIfAbsent(frequency, created);
+
+            if (counts == null)
+            {
+                counts = created;
+            }
+        }
+
+        return counts;
+    }
+
+    public long getChannelDecodersSpawned(int frequency) { return getChannelCount(frequency, CHANNEL_DECODERS); }
+
+    public long getChannelSolutions(int frequency) { return getChannelCount(frequency, CHANNEL_SOLVED); }
+
+    private long getChannelCount(int frequency, int index)
+    {
+        AtomicLongArray counts = channels.get(frequency);
+
+        return (counts != null) ? counts.get(index) : 0;
+    }
+
+    @Override
+    public long getFramesParsed() { return framesParsed.get(); }
+
+    @Override
+    public long getFramesRejected() { return framesRejected.get(); }
+
+    @Override
+    public long getFramesDropped() { return framesDropped.get(); }
+
+    @Override
+    public long getPipelineStalls() { return pipelineStalls.get(); }
+
+    // The rate since the oldest sample, see RATE_SAMPLES.
+    @Override
+    public synchronized double getFramesParsedPerSecond()
+    {
+        int oldest = getOldestSample();
+
+        return getRate(framesParsed.get() - sampleFrames[oldest], oldest);
+    }
+
+    // The rate since the oldest sample, see RATE_SAMPLES.
+    @Override
+    public synchronized double getFramesRejectedPerSecond()
+    {
+        int oldest = getOldestSample();
+
+        return getRate(framesRejected.get() - sampleRejected[oldest], oldest);
+    }
+
+    private int getOldestSample() { return (sampleCount < RATE_SAMPLES) ? 0 : sampleNext; }
+
+    private double getRate(long frames, int oldest)
+    {
+        long nanos = System.nanoTime() - sampleNanos[oldest];
+
+        return frames / (nanos / (double)TimeUnit.SECONDS.toNanos(1));
+    }
+
+    @Override
+    public long getActiveLinks() { return activeLinks.get(); }
+
+    @Override
+    public long getLinksEvictedIdle() { return linksEvictedIdle.get(); }
+
+    @Override
+    public long getLinksEvictedForMemory() { return linksEvictedForMemory.get(); }
+
+    @Override
+    public long getActiveLinkManagers() { return activeLinkManagers.get(); }
+
+    @Override
+    public long getActiveLengthDecoders() { return activeLengthDecoders.get(); }
+
+    @Override
+    public long getLengthDecodersSpawned() { return lengthDecodersSpawned.get(); }
+
+    @Override
+    public long getLengthDecodersEvicted() { return lengthDecodersEvicted.get(); }
+
+    @Override
+    public long getSpeculativeDecodersSkipped() { return speculativeDecodersSkipped.get(); }
+
+    @Override
+    public double getLengthDecodersPerLink()
+    {
+        long links = linkManagersCreated.get();
+
+        return links == 0 ? 0 : lengthDecodersSpawned.get() / (double)links;
+    }
+
+    @Override
+    public long getLinkMemoryBytes() { return linkMemory.get(); }
+
+    @Override
+    public double getLinkMemoryBytesPerLink()
+    {
+        long links = activeLinkManagers.get();
+
+        return links == 0 ? 0 : linkMemory.get() / (double)links;
+    }
+
+    @Override
+    public long getMaxLinkMemoryBytes() { return maxLinkMemory.get(); }
+
+    @Override
+    public long getSolverInvocations() { return solverInvocations.get(); }
+
+    @Override
+    public long getSolvesSuperseded() { return solvesSuperseded.get(); }
+
+    @Override
+    public long getSolvesRejected() { return solvesRejected.get(); }
+
+    @Override
+    public long getAmbiguousSolves() { return ambiguousSolves.get(); }
+
+    @Override
+    public long getSolutions() { return solutions.get(); }
+
+    @Override
+    public long getCaptureRestarts() { return captureRestarts.get(); }
+
+    @Override
+    public long[] getSolveTimeHistogram() { return solveTime.getCounts(); }
+
+    @Override
+    public long getSolveTimeMedianNanos() { return solveTime.getPercentile(50); }
+
+    @Override
+    public long getSolveTime99thPercentileNanos() { return solveTime.getPercentile(99); }
+
+    @Override
+    public long[] getTimeToSolveHistogram() { return timeToSolve.getCounts(); }
+
+    @Override
+    public long getTimeToSolveMedianMillis() { return TimeUnit.NANOSECONDS.toMillis(timeToSolve.getPercentile(50)); }
+
+    @Override
+    public String getChannelActivity()
+    {
+        StringBuilder builder = new StringBuilder();
+
+        for (Map.Entry<Integer, AtomicLongArray> entry : new TreeMap<>(channels).entrySet())
+        {
+            int frequency = entry.getKey();
+            AtomicLongArray counts = entry.getValue();
+
+            builder.append(builder.length() == 0 ? "" : ", ").append((frequency == 0) ? "unknown" : frequency + " MHz")
+                .append(String.format(" %d/%d/%d/%d", counts.get(CHANNEL_FRAMES), counts.get(CHANNEL_PROMOTED),
+                    counts.get(CHANNEL_DECODERS), counts.get(CHANNEL_SOLVED)));
+        }
+
+        return builder.toString();
+    }
+
+    @Override
+    public String getSnapshot()
+    {
+        return String.format("frames: %d parsed (%.0f/s), %d rejected (%.0f/s), %d dropped, %d stalls; links: %d active, %d managers, " +
+            "%d evicted idle, %d evicted for memory; " +
+            "decoders: %d active, %d spawned (%.2f/link), %d evicted, %d skipped; memory: %d bytes (%.0f/link, max %d); solver: %d invocations, median %dns, 99%% %dns, " +
+            "%d superseded, %d rejected, %d ambiguous; " +
+            "solutions: %d, median time to solve %dms; capture restarts: %d; channels (frames/promoted/decoders/solved): %s",
+            getFramesParsed(), getFramesParsedPerSecond(), getFramesRejected(), getFramesRejectedPerSecond(), getFramesDropped(), getPipelineStalls(),
+            getActiveLinks(), getActiveLinkManagers(), getLinksEvictedIdle(), getLinksEvictedForMemory(),
+            getActiveLengthDecoders(), getLengthDecodersSpawned(), getLengthDecodersPerLink(), getLengthDecodersEvicted(),
+            getSpeculativeDecodersSkipped(),
+            getLinkMemoryBytes(), getLinkMemoryBytesPerLink(), getMaxLinkMemoryBytes(),
+            getSolverInvocations(), getSolveTimeMedianNanos(), getSolveTime99thPercentileNanos(),
+            getSolvesSuperseded(), getSolvesRejected(), getAmbiguousSolves(),
+            getSolutions(), getTimeToSolveMedianMillis(), getCaptureRestarts(), getChannelActivity());
+    }
+
+    // A histogram with one bucket per power of two nanoseconds, bucket n counts times in the range [2^(n-1), 2^n).
+    private static class Histogram
+    {
+        private final static int BUCKETS = 64;
+
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+        public void record(long nanos)
+        {
+            counts.incrementAndGet(BUCKETS - Long.numberOfLeadingZeros(Math.max(nanos, 0)));
+        }
+
+        public long[] getCounts()
+        {
+            long[] result = new long[BUCKETS];
+
+            for (int i = 0; i < BUCKETS; i++)
+            {
+                result[i] = counts.get(i);
+            }
+
+            return result;
+        }
+
+        // Returns the upper bound of the bucket containing the given percentile, or 0 if there are no values.
+        public long getPercentile(double percentile)
+        {
+            long[] values = getCounts();
+            long total = 0;
+
+            for (long count : values)
+            {
+                total += count;
+            }
+
+            long target = (long)Math.ceil(total * percentile / 100);
+            long seen = 0;
+
+            for (int i = 0; i < BUCKETS; i++)
+            {
+                seen += values[i];
+
+                if (seen >= target && seen > 0)
+                {
+                    return (i == 0) ? 0 : (i >= 63 ? Long.MAX_VALUE : 1L << i);
+                }
+            }
+
+            return 0;
+        }
+    }
+}
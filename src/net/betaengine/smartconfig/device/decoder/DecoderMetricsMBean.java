@@ -0,0 +1,87 @@
+/**
+ * Copyright 2013 George C. Hawkins
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.betaengine.smartconfig.device.decoder;
+
+// The decoder metrics exposed via JMX, see DecoderMetrics.
+public interface DecoderMetricsMBean
+{
+    long getFramesParsed();
+
+    long getFramesRejected();
+
+    long getFramesDropped();
+
+    long getPipelineStalls();
+
+    double getFramesParsedPerSecond();
+
+    double getFramesRejectedPerSecond();
+
+    long getActiveLinks();
+
+    long getLinksEvictedIdle();
+
+    long getLinksEvictedForMemory();
+
+    long getActiveLinkManagers();
+
+    long getActiveLengthDecoders();
+
+    long getLengthDecodersSpawned();
+
+    long getLengthDecodersEvicted();
+
+    // Decoders not spawned as their offset didn't match the estimated offset of their BSS.
+    long getSpeculativeDecodersSkipped();
+
+    // Both the decoders and the memory per link are for links with a manager, i.e. promoted out of the sketch.
+    double getLengthDecodersPerLink();
+
+    // The approximate number of bytes used to track links, in total, on average and for the biggest link seen.
+    long getLinkMemoryBytes();
+
+    double getLinkMemoryBytesPerLink();
+
+    long getMaxLinkMemoryBytes();
+
+    long getSolverInvocations();
+
+    long getSolvesSuperseded();
+
+    long getSolvesRejected();
+
+    long getAmbiguousSolves();
+
+    long getSolutions();
+
+    long getCaptureRestarts();
+
+    // Histograms have one bucket per power of two, i.e. bucket n counts times in the range [2^(n-1), 2^n) ns.
+    long[] getSolveTimeHistogram();
+
+    long getSolveTimeMedianNanos();
+
+    long getSolveTime99thPercentileNanos();
+
+    long[] getTimeToSolveHistogram();
+
+    long getTimeToSolveMedianMillis();
+
+    // The frames analyzed, links promoted out of the sketch, decoders spawned and solutions found on each channel.
+    String getChannelActivity();
+
+    String getSnapshot();
+}
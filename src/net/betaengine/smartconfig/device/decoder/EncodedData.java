@@ -1,19 +1,57 @@
 package net.betaengine.smartconfig.device.decoder;
 
-import java.util.List;
+import java.util.Arrays;
 
+// The length and data values that follow a tag. The values are held in primitive
+// arrays that are reused from one tag to the next so consumers must copy any
+// values that they want to keep.
 public class EncodedData
 {
-    private final List<Integer> lengths;
-    private final List<Integer> data;
+    private int[] lengths;
+    private int[] data;
+    private int lengthCount = 0;
+    private int dataCount = 0;
     
-    public EncodedData(List<Integer> lengths, List<Integer> data)
+    public EncodedData(int capacity)
     {
-        this.lengths = lengths;
-        this.data = data;
+        lengths = new int[capacity];
+        data = new int[capacity];
     }
     
-    public List<Integer> getLengths() { return lengths; }
+    // The approximate number of bytes used by the arrays.
+    public int getMemoryUsage() { return (lengths.length + data.length) * 4; }
     
-    public List<Integer> getData() { return data; }
-}
\ No newline at end of file
+    public void clear()
+    {
+        lengthCount = 0;
+        dataCount = 0;
+    }
+    
+    public void addLength(int length)
+    {
+        if (lengthCount == lengths.length)
+        {
+            lengths = Arrays.copyOf(lengths, lengths.length * 2);
+        }
+        
+        lengths[lengthCount++] = length;
+    }
+    
+    public void addData(int value)
+    {
+        if (dataCount == data.length)
+        {
+            data = Arrays.copyOf(data, data.length * 2);
+        }
+        
+        data[dataCount++] = value;
+    }
+    
+    public int getLengthCount() { return lengthCount; }
+    
+    public int getLength(int index) { return lengths[index]; }
+    
+    public int getDataCount() { return dataCount; }
+    
+    public int getData(int index) { return data[index]; }
+}
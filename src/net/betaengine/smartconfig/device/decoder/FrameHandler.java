@@ -0,0 +1,28 @@
+/**
+ * Copyright 2013 George C. Hawkins
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.betaengine.smartconfig.device.decoder;
+
+
+public interface FrameHandler
+{
+    // Passed as the timestamp by sources that don't record when frames were captured, e.g. tshark's text output.
+    long NO_TIMESTAMP = Long.MIN_VALUE;
+
+    // The timestamp is the capture time in microseconds, e.g. since the epoch for pcap captures or since the
+    // start of the capture for binary captures. The BSSID is MacAddresses.INVALID and the frequency, in MHz,
+    // is 0 if the source doesn't provide them. Returns true if no further frames are required.
+    boolean process(long micros, long bssid, int frequency, long source, long destination, int length);
+}
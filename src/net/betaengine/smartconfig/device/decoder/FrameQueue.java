@@ -0,0 +1,121 @@
+/**
+ * Copyright 2013 George C. Hawkins
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.betaengine.smartconfig.device.decoder;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+// A bounded single-producer/single-consumer queue of frames. The frame fields are held
+// in preallocated primitive arrays so nothing is allocated per frame. Only one thread
+// may call offer(...) and only one (other) thread may call drain(...).
+public class FrameQueue
+{
+    private final long[] timestamps;
+    private final long[] bssids;
+    private final int[] frequencies;
+    private final long[] sources;
+    private final long[] destinations;
+    private final int[] lengths;
+    private final int mask;
+
+    // Written only by the consumer and producer respectively. They're published with
+    // lazySet(...), which is all that's needed when there's a single writer.
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+
+    // Each side keeps a cached copy of the other side's index so that it only needs to
+    // read the other side's (contended) cache line when the queue looks full or empty.
+    private long cachedHead = 0;
+    private long cachedTail = 0;
+
+    public FrameQueue(int capacity)
+    {
+        if (Integer.bitCount(capacity) != 1)
+        {
+            throw new IllegalArgumentException("capacity must be a power of two: " + capacity);
+        }
+
+        timestamps = new long[capacity];
+        bssids = new long[capacity];
+        frequencies = new int[capacity];
+        sources = new long[capacity];
+        destinations = new long[capacity];
+        lengths = new int[capacity];
+        mask = capacity - 1;
+    }
+
+    // Returns false, without blocking, if the queue is full.
+    public boolean offer(long micros, long bssid, int frequency, long source, long destination, int length)
+    {
+        long t = tail.get();
+
+        if (t - cachedHead == lengths.length)
+        {
+            cachedHead = head.get();
+
+            if (t - cachedHead == lengths.length)
+            {
+                return false;
+            }
+        }
+
+        int index = (int)t & mask;
+
+        timestamps[index] = micros;
+        bssids[index] = bssid;
+        frequencies[index] = frequency;
+        sources[index] = source;
+        destinations[index] = destination;
+        lengths[index] = length;
+        tail.lazySet(t + 1);
+
+        return true;
+    }
+
+    // Passes up to max queued frames to the handler and returns the number passed.
+    public int drain(FrameHandler handler, int max)
+    {
+        long h = head.get();
+
+        if (h == cachedTail)
+        {
+            cachedTail = tail.get();
+
+            if (h == cachedTail)
+            {
+                return 0;
+            }
+        }
+
+        int count = (int)Math.min(max, cachedTail - h);
+
+        for (int i = 0; i < count; i++)
+        {
+            int index = (int)(h + i) & mask;
+
+            handler.process(timestamps[index], bssids[index], frequencies[index], sources[index], destinations[index], lengths[index]);
+        }
+
+        // The slots are only handed back to the producer once the whole batch is processed.
+        head.lazySet(h + count);
+
+        return count;
+    }
+
+    public boolean isEmpty()
+    {
+        return head.get() == tail.get();
+    }
+}
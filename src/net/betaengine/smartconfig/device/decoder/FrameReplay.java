@@ -0,0 +1,200 @@
+/**
+ * Copyright 2013 George C. Hawkins
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.betaengine.smartconfig.device.decoder;
+
+import java.io.BufferedOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.TimeUnit;
+
+// Converts captures to the binary form written by BinaryFrameWriter and replays them through an
+// Analyzer, either as fast as possible or at a multiple of real time, so that what happened in the
+// field can be reproduced cheaply. Converting reads tshark's tab separated output, or a pcap capture,
+// and as the frames are timestamped as they're converted, converting a live capture piped from tshark
+// records its timing.
+public class FrameReplay
+{
+    private final static String CONVERT_OPTION = "--convert";
+    private final static String PCAP_OPTION = "--pcap";
+    private final static String SPEED_OPTION = "--speed";
+
+    private long frameCount = 0;
+    private int solutionCount = 0;
+
+    public static void main(String[] args)
+    {
+        String convertTo = null;
+        boolean pcap = false;
+        double speed = 0;
+        String filename = null;
+
+        try
+        {
+            for (int i = 0; i < args.length; i++)
+            {
+                if (args[i].equals(CONVERT_OPTION) && i + 1 < args.length)
+                {
+                    convertTo = args[++i];
+                }
+                else if (args[i].equals(PCAP_OPTION))
+                {
+                    pcap = true;
+                }
+                else if (args[i].equals(SPEED_OPTION) && i + 1 < args.length)
+                {
+                    speed = Double.parseDouble(args[++i]);
+                }
+                else if (filename == null && !args[i].startsWith("--"))
+                {
+                    filename = args[i];
+                }
+                else
+                {
+                    usage();
+                }
+            }
+        }
+        catch (NumberFormatException e)
+        {
+            usage();
+        }
+
+        // Only conversion can read from stdin, replaying a stream would make little sense.
+        if ((convertTo == null && (filename == null || pcap)) || (convertTo != null && speed != 0) || speed < 0)
+        {
+            usage();
+        }
+
+        try
+        {
+            FileInputStream stream = (filename == null) ? new FileInputStream(FileDescriptor.in) : new FileInputStream(filename);
+
+            try (ReadableByteChannel input = stream.getChannel())
+            {
+                if (convertTo != null)
+                {
+                    long count = convert(pcap ? new PcapFrameReader(input) : new TsvFrameReader(input), convertTo);
+
+                    System.err.println("Converted " + count + " frames");
+                }
+                else
+                {
+                    BinaryFrameReader reader = new BinaryFrameReader(input);
+
+                    reader.setSpeed(speed);
+                    new FrameReplay().replay(reader);
+                }
+            }
+        }
+        catch (IOException e)
+        {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    private static void usage()
+    {
+        System.err.println("Usage: java " + FrameReplay.class.getName() + " [" + SPEED_OPTION + " multiple] file");
+        System.err.println("       java " + FrameReplay.class.getName() + " " + CONVERT_OPTION + " output [" + PCAP_OPTION + "] [file]");
+        System.exit(1);
+    }
+
+    private static long convert(FrameReader reader, String filename) throws IOException
+    {
+        try (OutputStream output = new BufferedOutputStream(new FileOutputStream(filename)))
+        {
+            final BinaryFrameWriter writer = new BinaryFrameWriter(output);
+            final IOException[] failure = new IOException[1];
+            final long[] count = new long[1];
+
+            reader.read(new FrameHandler()
+            {
+                @Override
+                public boolean process(long micros, long bssid, int frequency, long source, long destination, int length)
+                {
+                    try
+                    {
+                        // Frames from pcap captures keep their capture time, tshark's text output has no
+                        // timestamps so its frames are stamped with the time they're converted.
+                        if (micros == NO_TIMESTAMP)
+                        {
+                            writer.write(bssid, frequency, source, destination, length);
+                        }
+                        else
+                        {
+                            writer.write(micros, bssid, frequency, source, destination, length);
+                        }
+                        count[0]++;
+
+                        return false;
+                    }
+                    catch (IOException e)
+                    {
+                        failure[0] = e;
+
+                        return true;
+                    }
+                }
+            });
+
+            if (failure[0] != null)
+            {
+                throw failure[0];
+            }
+
+            writer.flush();
+
+            return count[0];
+        }
+    }
+
+    private void replay(FrameReader reader) throws IOException
+    {
+        final Analyzer analyzer = new Analyzer(new SolutionListener()
+        {
+            @Override
+            public void solved(Solution solution)
+            {
+                solutionCount++;
+                System.err.println("Solved " + solution);
+            }
+        });
+
+        long start = System.nanoTime();
+
+        reader.read(new FrameHandler()
+        {
+            @Override
+            public boolean process(long micros, long bssid, int frequency, long source, long destination, int length)
+            {
+                frameCount++;
+                analyzer.process(micros, bssid, frequency, source, destination, length);
+
+                return false;
+            }
+        });
+
+        long millis = Math.max(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), 1);
+
+        System.err.println("Replayed " + frameCount + " frames in " + millis + "ms (" + (frameCount * 1000 / millis) +
+            " frames/s), " + solutionCount + " solution(s) found");
+    }
+}
@@ -0,0 +1,27 @@
+/**
+ * Copyright 2013 George C. Hawkins
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.betaengine.smartconfig.device.decoder;
+
+
+import java.io.IOException;
+
+// The counterpart to FrameReader, used to record frames in one of the formats that can be read back.
+public interface FrameWriter
+{
+    void write(long bssid, int frequency, long source, long destination, int length) throws IOException;
+
+    void flush() throws IOException;
+}
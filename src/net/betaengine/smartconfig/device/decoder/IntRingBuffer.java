@@ -0,0 +1,165 @@
+/**
+ * Copyright 2013 George C. Hawkins
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.betaengine.smartconfig.device.decoder;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+// A bounded queue of ints that, like EvictingQueue, evicts its oldest element
+// when a new element is added and it's already full. Unlike EvictingQueue nothing is
+// boxed and iteration is done by index, i.e. get(0) is the oldest element and
+// get(size() - 1) is the newest, so no iterator objects are needed. The capacity can be
+// changed, with resize(...), but this is expected to be rare.
+public class IntRingBuffer
+{
+    private int[] elements;
+    private int head = 0; // Index of the oldest element.
+    private int size = 0;
+
+    public IntRingBuffer(int capacity)
+    {
+        checkCapacity(capacity);
+
+        elements = new int[capacity];
+    }
+
+    public int capacity() { return elements.length; }
+
+    public int size() { return size; }
+
+    public boolean isEmpty() { return size == 0; }
+
+    public void add(int value)
+    {
+        if (size == elements.length)
+        {
+            elements[head] = value;
+            head = wrap(head + 1);
+        }
+        else
+        {
+            elements[wrap(head + size)] = value;
+            size++;
+        }
+    }
+
+    public int get(int index)
+    {
+        if (index < 0 || index >= size)
+        {
+            throw new IndexOutOfBoundsException("index: " + index + ", size: " + size);
+        }
+
+        return elements[wrap(head + index)];
+    }
+
+    public int getLast()
+    {
+        return get(size - 1);
+    }
+
+    public void clear()
+    {
+        head = 0;
+        size = 0;
+    }
+
+    // If the new capacity is less than the current size then the oldest elements are dropped.
+    public void resize(int capacity)
+    {
+        checkCapacity(capacity);
+
+        int[] resized = new int[capacity];
+        int kept = Math.min(size, capacity);
+        int dropped = size - kept;
+
+        for (int i = 0; i < kept; i++)
+        {
+            resized[i] = elements[wrap(head + dropped + i)];
+        }
+
+        elements = resized;
+        head = 0;
+        size = kept;
+    }
+
+    // Copies the elements, oldest first, into dest starting at destPos and returns the number copied.
+    public int copyTo(int[] dest, int destPos)
+    {
+        int firstPart = Math.min(size, elements.length - head);
+
+        System.arraycopy(elements, head, dest, destPos, firstPart);
+        System.arraycopy(elements, 0, dest, destPos + firstPart, size - firstPart);
+
+        return size;
+    }
+
+    // Writes the capacity and the elements, oldest first.
+    public void write(DataOutput out) throws IOException
+    {
+        Varints.writeUnsigned(out, elements.length);
+        Varints.writeUnsigned(out, size);
+
+        for (int i = 0; i < size; i++)
+        {
+            Varints.writeSigned(out, get(i));
+        }
+    }
+
+    // Replaces the capacity and elements with those written by write(...). The capacity read must be
+    // no more than maxCapacity, so a corrupt one can't cause a huge allocation.
+    public void read(DataInput in, int maxCapacity) throws IOException
+    {
+        int capacity = Varints.readCount(in);
+        int count = Varints.readCount(in);
+
+        if (capacity <= 0 || capacity > maxCapacity)
+        {
+            throw new IOException("invalid capacity: " + capacity);
+        }
+
+        if (count > capacity)
+        {
+            throw new IOException("size " + count + " exceeds capacity " + capacity);
+        }
+
+        if (capacity != elements.length)
+        {
+            elements = new int[capacity];
+        }
+
+        clear();
+
+        for (int i = 0; i < count; i++)
+        {
+            add((int)Varints.readSigned(in));
+        }
+    }
+
+    private static void checkCapacity(int capacity)
+    {
+        if (capacity <= 0)
+        {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+    }
+
+    private int wrap(int index)
+    {
+        return index >= elements.length ? index - elements.length : index;
+    }
+}
@@ -15,47 +15,167 @@
  */
 package net.betaengine.smartconfig.device.decoder;
 
-import java.util.ArrayList;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.List;
-
-import com.google.common.collect.EvictingQueue;
+import java.util.concurrent.Executor;
 
 public class LengthDecoder
 {
     public final static int SEPARATOR_START = 3;
     public final static int SEPARATOR_END = 23;
     
-    private final static int MAX_SIZES = 512; // Might need to be higher for busy n/w.
-    private final static int SSID_TAG = 0x577;
-    private final static int KEYPHRASE_TAG = 0x5b3;
+    final static int SSID_TAG = 0x577;
+    final static int KEYPHRASE_TAG = 0x5b3;
     
-    private final static int DATA_MIN = 593;
+    final static int DATA_MIN = 593;
     private final static int MAX_UNSIGNED_BYTE = 255;
     private final static int DATA_MAX = DATA_MIN + MAX_UNSIGNED_BYTE;
     
-    private final static int LEN_MIN = 28;
-    private final static int MAX_SEQUENCE_LEN = 32;
+    final static int LEN_MIN = 28;
+    final static int MAX_SEQUENCE_LEN = 32;
     private final static int LEN_MAX = LEN_MIN + MAX_SEQUENCE_LEN;
+
+    // The sizes window is resized to twice the (decaying) maximum distance seen between tags, i.e. so that
+    // it can hold at least a full SSID or keyphrase along with any other traffic interleaved with it.
+    private final static int MIN_SIZES = 64;
+    private final static int INITIAL_SIZES = 128;
+    private final static int MAX_SIZES = 2048;
+
+    // A tag is a much stronger sign that the offset is right than a value that happens to be in range.
+    private final static int TAG_SCORE = 16;
     
-    private final EvictingQueue<Integer> sizes = EvictingQueue.create(MAX_SIZES);
+    private final IntRingBuffer sizes = new IntRingBuffer(INITIAL_SIZES);
+    private final EncodedData encodedData = new EncodedData(MAX_SEQUENCE_LEN * 2);
+    
+    // The total number of sizes ever added and the positions, in that count,
+    // of the last instance of each tag. This avoids having to search for the
+    // tags in sizes each time a tag is seen.
+    private long count = 0;
+    private long ssidTagPosition = -1;
+    private long keyphraseTagPosition = -1;
+    private long lastTagPosition = -1;
+    private int tagDistance = 0;
     
     private final int offset;
-    private final Solver ssidSolver = new Solver("SSID");
-    private final Solver keyphraseSolver = new Solver("keyphrase");
+    private final AsyncSolver ssidSolver;
+    private final AsyncSolver keyphraseSolver;
     
     private boolean ssidTagSeen = false;
     private boolean keyphraseTagSeen = false;
+
+    // The decoder's score goes up for every size that is a tag, length or data value, i.e. for every
+    // size that is productive for this offset. Progress is the last time a tag was added.
+    private int score = 0;
+    private long progressPosition;
+    private long productiveCount = 0;
     
-    public LengthDecoder(int offset, Iterable<Integer> previousLengths)
+    public LengthDecoder(int offset, IntRingBuffer previousLengths)
+    {
+        this(offset, previousLengths, null);
+    }
+
+    // If solverExecutor is null then solving happens inline, i.e. within add(...).
+    public LengthDecoder(int offset, IntRingBuffer previousLengths, Executor solverExecutor)
     {
         this.offset = offset;
+        this.ssidSolver = new AsyncSolver("SSID", solverExecutor);
+        this.keyphraseSolver = new AsyncSolver("keyphrase", solverExecutor);
         
         // The decoder gets created when we see a potential SEPARATOR_END. If it is the real
         // thing then SEPARATOR_START, a tag and a a length are probably in the preceding values.
-        for (int length : previousLengths)
+        for (int i = 0; i < previousLengths.size(); i++)
         {
-            sizes.add(length - offset);
+            append(previousLengths.get(i) - offset);
         }
+
+        // Any tags in the previous lengths don't count, a new decoder starts with a clean slate. Only
+        // the tag positions are kept, so values following a replayed tag can still be solved.
+        score = 0;
+        productiveCount = 0;
+        lastTagPosition = -1;
+        progressPosition = count;
+    }
+    
+    public int getOffset() { return offset; }
+
+    public int getScore() { return score; }
+
+    // The number of sizes added since a tag was last seen or, if none has been seen, since creation.
+    public long getSizesSinceProgress() { return count - progressPosition; }
+
+    public boolean hasSeenTag() { return lastTagPosition != -1; }
+
+    // The average number of sizes added for each size that was a tag, length or data value,
+    // i.e. 1 if nothing else is interleaved with the Smart Config traffic on this link.
+    public double getInterleave() { return count / (double)Math.max(productiveCount, 1); }
+
+    // The approximate number of bytes used by this decoder's arrays.
+    public int getMemoryUsage()
+    {
+        return (sizes.capacity() * 4) + encodedData.getMemoryUsage() +
+            ssidSolver.getMemoryUsage() + keyphraseSolver.getMemoryUsage();
+    }
+    
+    public List<String> getSsidAlternatives() { return ssidSolver.getAlternatives(); }
+    
+    public List<String> getKeyphraseAlternatives() { return keyphraseSolver.getAlternatives(); }
+
+    // If solving is asynchronous then this may become true between calls to add(...).
+    public boolean isSolved() { return ssidSolver.isSolved() && keyphraseSolver.isSolved(); }
+
+    // Abandons any solving still in progress, once this decoder is no longer needed.
+    public void cancel()
+    {
+        ssidSolver.cancel();
+        keyphraseSolver.cancel();
+    }
+
+    // Writes everything needed to recreate this decoder with read(...).
+    public void write(DataOutput out) throws IOException
+    {
+        Varints.writeSigned(out, offset);
+        sizes.write(out);
+        Varints.writeUnsigned(out, count);
+        Varints.writeSigned(out, ssidTagPosition);
+        Varints.writeSigned(out, keyphraseTagPosition);
+        Varints.writeSigned(out, lastTagPosition);
+        Varints.writeUnsigned(out, tagDistance);
+        out.writeBoolean(ssidTagSeen);
+        out.writeBoolean(keyphraseTagSeen);
+        Varints.writeUnsigned(out, score);
+        Varints.writeUnsigned(out, progressPosition);
+        Varints.writeUnsigned(out, productiveCount);
+        ssidSolver.write(out);
+        keyphraseSolver.write(out);
+    }
+
+    public static LengthDecoder read(DataInput in, Executor solverExecutor) throws IOException
+    {
+        LengthDecoder decoder = new LengthDecoder((int)Varints.readSigned(in), new IntRingBuffer(1), solverExecutor);
+
+        decoder.sizes.read(in, MAX_SIZES);
+        decoder.count = Varints.readUnsigned(in);
+        decoder.ssidTagPosition = Varints.readSigned(in);
+        decoder.keyphraseTagPosition = Varints.readSigned(in);
+        decoder.lastTagPosition = Varints.readSigned(in);
+        decoder.tagDistance = Varints.readCount(in);
+        decoder.ssidTagSeen = in.readBoolean();
+        decoder.keyphraseTagSeen = in.readBoolean();
+        decoder.score = Varints.readCount(in);
+        decoder.progressPosition = Varints.readUnsigned(in);
+        decoder.productiveCount = Varints.readUnsigned(in);
+        decoder.ssidSolver.read(in);
+        decoder.keyphraseSolver.read(in);
+
+        if (decoder.sizes.size() > decoder.count || decoder.ssidTagPosition >= decoder.count ||
+            decoder.keyphraseTagPosition >= decoder.count || decoder.lastTagPosition >= decoder.count)
+        {
+            throw new IOException("inconsistent decoder positions");
+        }
+
+        return decoder;
     }
 
     public boolean add(int length)
@@ -66,85 +186,122 @@ public class LengthDecoder
         {
             ssidTagSeen = true;
 
-            solve(keyphraseTagSeen, keyphraseSolver, KEYPHRASE_TAG);
+            solve(keyphraseTagSeen, keyphraseSolver, keyphraseTagPosition);
         }
         else if (size == KEYPHRASE_TAG)
         {
             keyphraseTagSeen = true;
             
-            solve(ssidTagSeen, ssidSolver, SSID_TAG);
+            solve(ssidTagSeen, ssidSolver, ssidTagPosition);
         }
         
-        sizes.add(size);
+        append(size);
         
-        return ssidSolver.isSolved() && keyphraseSolver.isSolved();
+        return isSolved();
     }
     
-    private void solve(boolean otherSeen, Solver solver, int separator)
+    private void append(int size)
     {
-        if (otherSeen)
+        if (size == SSID_TAG || size == KEYPHRASE_TAG)
         {
-            EncodedData encodedData = getEncodedData(separator);
-            
-            if (encodedData != null)
+            if (size == SSID_TAG)
+            {
+                ssidTagPosition = count;
+            }
+            else
+            {
+                keyphraseTagPosition = count;
+            }
+
+            if (lastTagPosition != -1)
             {
-                solver.process(encodedData);
+                tagDistance = Math.max((int)Math.min(count - lastTagPosition, MAX_SIZES), tagDistance - (tagDistance >> 3));
+                resizeSizes();
             }
+
+            lastTagPosition = count;
+            progressPosition = count;
+            score += TAG_SCORE;
+            productiveCount++;
+        }
+        else if (isValidLenValue(size) || isValidDataValue(size))
+        {
+            score++;
+            productiveCount++;
         }
+        
+        sizes.add(size);
+        count++;
     }
     
-    private EncodedData getEncodedData(int tag)
+    private void solve(boolean otherSeen, AsyncSolver solver, long tagPosition)
     {
-        List<Integer> sequence = new ArrayList<>();
-        boolean foundTag = false;
-        
-        for (int size : sizes)
+        if (otherSeen && getEncodedData(tagPosition))
         {
-            if (size == tag)
-            {
-                foundTag = true;
-                // We may find the tag multiple times.
-                // We only want the values from the last instance of tag onwards.
-                sequence.clear();
-            }
-            else if (foundTag)
-            {
-                sequence.add(size);
-            }
+            solver.submit(encodedData);
         }
+    }
+    
+    // Fills encodedData with the values following the tag at the given position.
+    // Returns false if there are no such values or the tag has already been evicted.
+    private boolean getEncodedData(long tagPosition)
+    {
+        // The index in sizes of the first value after the tag.
+        long start = tagPosition - (count - sizes.size()) + 1;
         
-        if (sequence.isEmpty())
+        if (tagPosition < 0)
+        {
+            return false;
+        }
+
+        if (start <= 0)
         {
-            return null;
+            // The tag has already been evicted so make sure the window is big enough next time.
+            tagDistance = Math.max((int)Math.min(count - tagPosition, MAX_SIZES), tagDistance);
+            resizeSizes();
+
+            return false;
         }
         
-        List<Integer> lengths = new ArrayList<>();
-        List<Integer> data = new ArrayList<>();
+        encodedData.clear();
         
-        boolean start = true;
+        boolean lengthsDone = false;
         
         // Clean up the sequence - we want at least one potential length value,
         // followed by zero or more data values.
-        for (int size : sequence)
+        for (int i = (int)start; i < sizes.size(); i++)
         {
-            if (start && isValidLenValue(size))
+            int size = sizes.get(i);
+            
+            if (!lengthsDone && isValidLenValue(size))
             {
-                lengths.add(size - LEN_MIN);
+                encodedData.addLength(size - LEN_MIN);
             }
-            else if (!lengths.isEmpty())
+            else if (encodedData.getLengthCount() > 0)
             {
-                start = false;
+                lengthsDone = true;
                 
                 if (isValidDataValue(size))
                 {
-                    data.add(size - DATA_MIN);
+                    encodedData.addData(size - DATA_MIN);
                 }
             }
         }
         
-        return lengths.isEmpty() ? null : new EncodedData(lengths, data);
+        return encodedData.getLengthCount() > 0;
     }
     
+    // Grows the window as soon as it's too small but only shrinks it once it's four times too big.
+    private void resizeSizes()
+    {
+        int target = Math.max(MIN_SIZES, Math.min(MAX_SIZES, Integer.highestOneBit(tagDistance) * 4));
+
+        if (target > sizes.capacity() || target * 4 <= sizes.capacity())
+        {
+            sizes.resize(target);
+        }
+    }
+
     private boolean isValidLenValue(int len)
     {
         return len >= LEN_MIN && len <= LEN_MAX;
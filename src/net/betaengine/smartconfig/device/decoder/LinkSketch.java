@@ -0,0 +1,203 @@
+/**
+ * Copyright 2013 George C. Hawkins
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.betaengine.smartconfig.device.decoder;
+
+// The first tier of link tracking. Almost no links ever carry Smart Config traffic so, rather
+// than giving every link a LinkManager, each link just gets a tiny history of its last few
+// lengths that's only used to spot the SEPARATOR_END - SEPARATOR_START pattern. Only once
+// the pattern is seen does the link need to be promoted to a LinkManager.
+//
+// The table is fixed size and two-way set associative, i.e. each link can only go in one of the
+// two slots of the bucket that it hashes to and a new link replaces whichever of the two was
+// used least recently. So the memory used is the same however many links are seen. Losing a
+// link's history just means that it takes a little longer to spot the pattern, a link sending
+// Smart Config traffic sends it repeatedly so it's rarely the least recently used.
+public class LinkSketch
+{
+    public final static int HISTORY_SIZE = 4;
+
+    private final static int DIFF = LengthDecoder.SEPARATOR_END - LengthDecoder.SEPARATOR_START;
+
+    private final static long EMPTY = MacAddresses.INVALID; // Never a valid 48-bit address.
+
+    // Lengths are packed into 16 bits each, 0 marks an unused entry in a history. A length too
+    // big to fit can't be part of the pattern so it's clamped rather than stored exactly.
+    private final static int LENGTH_BITS = 16;
+    private final static long LENGTH_MASK = (1L << LENGTH_BITS) - 1;
+
+    private final static DecoderMetrics metrics = DecoderMetrics.getInstance();
+
+    // As in LinkTable, the source, destination and partition of each slot are stored next to each other.
+    private final static int KEY_LENGTH = 3;
+
+    private final long[] keys;
+    private final long[] histories; // The newest length is in the low bits.
+    private final boolean[] secondRecent; // For each bucket, true if the second slot was used most recently.
+    private final int mask;
+    private int size = 0;
+
+    // Links come and go with almost every frame on a busy capture so, rather than updating the shared
+    // metrics each time, they're counted here until the owner calls publishCounts().
+    private long linksCreated = 0;
+    private long linksForgotten = 0;
+
+    public LinkSketch(int capacity)
+    {
+        if (Integer.bitCount(capacity) != 1 || capacity < 2)
+        {
+            throw new IllegalArgumentException("capacity must be a power of 2 and at least 2: " + capacity);
+        }
+
+        keys = new long[capacity * KEY_LENGTH];
+        histories = new long[capacity];
+        secondRecent = new boolean[capacity / 2];
+        mask = capacity - 1;
+
+        for (int slot = 0; slot < capacity; slot++)
+        {
+            keys[slot * KEY_LENGTH] = EMPTY;
+        }
+    }
+
+    public int size() { return size; }
+
+    public void publishCounts()
+    {
+        metrics.linksChanged(linksCreated, linksForgotten);
+        linksCreated = 0;
+        linksForgotten = 0;
+    }
+
+    public long getMemoryUsage() { return ((keys.length + histories.length) * 8L) + secondRecent.length; }
+
+    // Returns true if the given length, along with one of the previous lengths for the link, looks like
+    // the separator pattern, in which case the length isn't added and the link should be promoted.
+    public boolean add(long partition, long source, long destination, int length)
+    {
+        int slot = find(partition, source, destination);
+
+        if (slot < 0)
+        {
+            slot = getVictim(partition, source, destination);
+
+            int key = slot * KEY_LENGTH;
+
+            if (keys[key] == EMPTY)
+            {
+                size++;
+            }
+            else
+            {
+                linksForgotten++; // The link in this slot is forgotten.
+            }
+
+            keys[key] = source;
+            keys[key + 1] = destination;
+            keys[key + 2] = partition;
+            histories[slot] = 0;
+            linksCreated++;
+        }
+
+        secondRecent[slot >>> 1] = (slot & 1) == 1;
+
+        long history = histories[slot];
+
+        for (int i = 0; i < HISTORY_SIZE; i++)
+        {
+            int previous = (int)((history >>> (i * LENGTH_BITS)) & LENGTH_MASK);
+
+            if (previous != 0 && length - previous == DIFF)
+            {
+                return true;
+            }
+        }
+
+        histories[slot] = (history << LENGTH_BITS) | Math.min(Math.max(length, 1), LENGTH_MASK);
+
+        return false;
+    }
+
+    // Removes the link, on promotion, and copies its history, oldest first, into lengths.
+    // Returns the number of lengths copied.
+    public int remove(long partition, long source, long destination, int[] lengths)
+    {
+        int slot = find(partition, source, destination);
+
+        if (slot < 0)
+        {
+            return 0;
+        }
+
+        int key = slot * KEY_LENGTH;
+
+        long history = histories[slot];
+        int count = 0;
+
+        for (int i = HISTORY_SIZE - 1; i >= 0; i--)
+        {
+            int previous = (int)((history >>> (i * LENGTH_BITS)) & LENGTH_MASK);
+
+            if (previous != 0)
+            {
+                lengths[count++] = previous;
+            }
+        }
+
+        keys[key] = EMPTY;
+        keys[key + 1] = EMPTY;
+        keys[key + 2] = EMPTY;
+        histories[slot] = 0;
+        size--;
+
+        return count;
+    }
+
+    // Returns the slot holding the given link or -1 if it isn't present.
+    private int find(long partition, long source, long destination)
+    {
+        int first = LinkTable.hash(partition, source, destination) & mask & ~1;
+
+        for (int slot = first; slot <= first + 1; slot++)
+        {
+            int key = slot * KEY_LENGTH;
+
+            if (keys[key] == source && keys[key + 1] == destination && keys[key + 2] == partition)
+            {
+                return slot;
+            }
+        }
+
+        return -1;
+    }
+
+    // Returns an empty slot in the link's bucket or, if there isn't one, the least recently used.
+    private int getVictim(long partition, long source, long destination)
+    {
+        int first = LinkTable.hash(partition, source, destination) & mask & ~1;
+
+        if (keys[first * KEY_LENGTH] == EMPTY)
+        {
+            return first;
+        }
+
+        if (keys[(first + 1) * KEY_LENGTH] == EMPTY)
+        {
+            return first + 1;
+        }
+
+        return secondRecent[first >>> 1] ? first : first + 1;
+    }
+}
@@ -0,0 +1,238 @@
+/**
+ * Copyright 2013 George C. Hawkins
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.betaengine.smartconfig.device.decoder;
+
+// An open-addressing (linear probing) map from a link, i.e. a partition (see Partitions) and a source
+// and destination MAC address pair, to a value. The three parts of each key are stored next to each
+// other in a single long array so a lookup touches as little memory as possible and, unlike a
+// HashMap, never needs to create a key object.
+//
+// Like IntRingBuffer, iteration is done by index, i.e. by walking the slots from 0 to
+// capacity() - 1 and skipping those that aren't occupied, so no iterator objects are needed.
+public class LinkTable<V>
+{
+    private final static int DEFAULT_CAPACITY = 64;
+    private final static long EMPTY = MacAddresses.INVALID; // Never a valid 48-bit address.
+
+    // Each key is the source, destination and partition, in that order.
+    private final static int KEY_LENGTH = 3;
+
+    private long[] keys;
+    private Object[] values;
+    private int mask;
+    private int size = 0;
+
+    public LinkTable()
+    {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public LinkTable(int expectedSize)
+    {
+        allocate(tableSizeFor(expectedSize));
+    }
+
+    public int size() { return size; }
+
+    // The number of slots, this only changes when a put(...) causes the table to grow.
+    public int capacity() { return values.length; }
+
+    public boolean isOccupied(int slot) { return keys[slot * KEY_LENGTH] != EMPTY; }
+
+    public long getPartition(int slot) { return keys[(slot * KEY_LENGTH) + 2]; }
+
+    public long getSource(int slot) { return keys[slot * KEY_LENGTH]; }
+
+    public long getDestination(int slot) { return keys[(slot * KEY_LENGTH) + 1]; }
+
+    public V getValue(int slot) { return valueAt(slot); }
+
+    public V get(long partition, long source, long destination)
+    {
+        int slot = find(partition, source, destination);
+
+        return slot < 0 ? null : valueAt(slot);
+    }
+
+    public V put(long partition, long source, long destination, V value)
+    {
+        int slot = find(partition, source, destination);
+
+        if (slot >= 0)
+        {
+            V previous = valueAt(slot);
+
+            values[slot] = value;
+
+            return previous;
+        }
+
+        // Keep the load factor at or below 0.5 so probe sequences stay short.
+        if ((size + 1) * 2 > values.length)
+        {
+            resize(values.length * 2);
+        }
+
+        insert(partition, source, destination, value);
+        size++;
+
+        return null;
+    }
+
+    public V remove(long partition, long source, long destination)
+    {
+        int slot = find(partition, source, destination);
+
+        if (slot < 0)
+        {
+            return null;
+        }
+
+        V previous = valueAt(slot);
+
+        removeAt(slot);
+
+        return previous;
+    }
+
+    // Rather than leaving a tombstone, later links in the same probe sequence are shifted back to
+    // fill the gap. So, when removing while iterating, the same slot must be examined again as it may
+    // now hold a link that hasn't been seen yet. A link may also be seen twice, if it's shifted back
+    // from the start of the table to the end, but none is ever skipped.
+    public void removeAt(int slot)
+    {
+        int hole = slot;
+        int next = (hole + 1) & mask;
+
+        while (keys[next * KEY_LENGTH] != EMPTY)
+        {
+            int key = next * KEY_LENGTH;
+            int home = hash(keys[key + 2], keys[key], keys[key + 1]) & mask;
+
+            // A link can only move back to the hole if the hole isn't before its home slot.
+            if (((next - home) & mask) >= ((next - hole) & mask))
+            {
+                System.arraycopy(keys, key, keys, hole * KEY_LENGTH, KEY_LENGTH);
+                values[hole] = values[next];
+                hole = next;
+            }
+
+            next = (next + 1) & mask;
+        }
+
+        keys[hole * KEY_LENGTH] = EMPTY;
+        values[hole] = null;
+        size--;
+    }
+
+    // Returns the slot holding the given link or -1 if it isn't present.
+    private int find(long partition, long source, long destination)
+    {
+        int slot = hash(partition, source, destination) & mask;
+
+        while (true)
+        {
+            int key = slot * KEY_LENGTH;
+
+            if (keys[key] == EMPTY)
+            {
+                return -1;
+            }
+
+            if (keys[key] == source && keys[key + 1] == destination && keys[key + 2] == partition)
+            {
+                return slot;
+            }
+
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private void insert(long partition, long source, long destination, Object value)
+    {
+        int slot = hash(partition, source, destination) & mask;
+
+        while (keys[slot * KEY_LENGTH] != EMPTY)
+        {
+            slot = (slot + 1) & mask;
+        }
+
+        int key = slot * KEY_LENGTH;
+
+        keys[key] = source;
+        keys[key + 1] = destination;
+        keys[key + 2] = partition;
+        values[slot] = value;
+    }
+
+    private void resize(int capacity)
+    {
+        long[] oldKeys = keys;
+        Object[] oldValues = values;
+
+        allocate(capacity);
+
+        for (int slot = 0; slot < oldValues.length; slot++)
+        {
+            int key = slot * KEY_LENGTH;
+
+            if (oldKeys[key] != EMPTY)
+            {
+                insert(oldKeys[key + 2], oldKeys[key], oldKeys[key + 1], oldValues[slot]);
+            }
+        }
+    }
+
+    private void allocate(int capacity)
+    {
+        keys = new long[capacity * KEY_LENGTH];
+        values = new Object[capacity];
+        mask = capacity - 1;
+
+        for (int slot = 0; slot < capacity; slot++)
+        {
+            keys[slot * KEY_LENGTH] = EMPTY;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private V valueAt(int slot)
+    {
+        return (V)values[slot];
+    }
+
+    // Addresses frequently differ only in their low bytes so the bits are mixed
+    // thoroughly (using the MurmurHash3 finalizer) before the table mask is applied.
+    static int hash(long partition, long source, long destination)
+    {
+        long h = (((source * 0x9E3779B97F4A7C15L) ^ destination) * 0x9E3779B97F4A7C15L) ^ partition;
+
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+
+        return (int)h;
+    }
+
+    private static int tableSizeFor(int expectedSize)
+    {
+        int capacity = Integer.highestOneBit(Math.max(expectedSize * 2, 2) - 1) << 1;
+
+        return Math.max(capacity, 2);
+    }
+}
@@ -0,0 +1,113 @@
+/**
+ * Copyright 2013 George C. Hawkins
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.betaengine.smartconfig.device.decoder;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+// MAC addresses are handled as the low 48 bits of a long so that no objects
+// need to be created in order to compare or hash them.
+public class MacAddresses
+{
+    public final static long INVALID = -1;
+
+    private final static int MAC_BYTES = 6;
+
+    private MacAddresses() { }
+
+    // Parses the colon separated form, e.g. "00:1a:2b:3c:4d:5e", that tshark outputs.
+    // Returns INVALID if the bytes between start (inclusive) and end (exclusive) aren't a MAC address.
+    public static long parse(ByteBuffer buffer, int start, int end)
+    {
+        if (end - start != (MAC_BYTES * 3) - 1)
+        {
+            return INVALID;
+        }
+
+        long result = 0;
+
+        for (int i = start; i < end; i += 3)
+        {
+            int high = hexValue(buffer.get(i));
+            int low = hexValue(buffer.get(i + 1));
+
+            if (high == -1 || low == -1 || (i + 2 < end && buffer.get(i + 2) != ':'))
+            {
+                return INVALID;
+            }
+
+            result = (result << 8) | (high << 4) | low;
+        }
+
+        return result;
+    }
+
+    // Reads the six bytes of an address in transmission order, i.e. as they appear in an 802.11 header.
+    public static long read(ByteBuffer buffer, int position)
+    {
+        long result = 0;
+
+        for (int i = position; i < position + MAC_BYTES; i++)
+        {
+            result = (result << 8) | (buffer.get(i) & 0xFF);
+        }
+
+        return result;
+    }
+
+    // Writes the six bytes of an address, high byte first.
+    public static void write(DataOutput out, long address) throws IOException
+    {
+        out.writeShort((int)(address >>> 32));
+        out.writeInt((int)address);
+    }
+
+    public static long read(DataInput in) throws IOException
+    {
+        return ((long)in.readUnsignedShort() << 32) | (in.readInt() & 0xFFFFFFFFL);
+    }
+
+    public static String toString(long address)
+    {
+        StringBuilder builder = new StringBuilder();
+
+        for (int shift = (MAC_BYTES - 1) * 8; shift >= 0; shift -= 8)
+        {
+            if (builder.length() > 0)
+            {
+                builder.append(':');
+            }
+
+            int b = (int)(address >>> shift) & 0xFF;
+
+            builder.append(Character.forDigit(b >>> 4, 16));
+            builder.append(Character.forDigit(b & 0x0F, 16));
+        }
+
+        return builder.toString();
+    }
+
+    private static int hexValue(byte b)
+    {
+        if (b >= '0' && b <= '9') return b - '0';
+        if (b >= 'a' && b <= 'f') return b - 'a' + 10;
+        if (b >= 'A' && b <= 'F') return b - 'A' + 10;
+
+        return -1;
+    }
+}
@@ -0,0 +1,387 @@
+/**
+ * Copyright 2013 George C. Hawkins
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.betaengine.smartconfig.device.decoder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+// Analyzes a complete TSV capture file, rather than a stream, making use of all its threads:
+//
+// - The file is split into chunks at line boundaries and each chunk is memory mapped.
+// - The chunks are parsed in parallel, each into the lengths seen for each link in that chunk.
+// - The chunks' lengths are grouped by link, in chunk order, so each link's lengths are in file order.
+// - Each link is then analyzed in its own task, so links are analyzed in parallel but each link's
+//   frames are still processed in order.
+//
+// Each worker thread has its own Analyzer, that's fed one link at a time, and the listener is called
+// with the lock on this object held. The solutions are usually the same as for a single Analyzer
+// reading the whole file but they aren't guaranteed to be, and can differ from run to run, as they
+// depend on how links are scheduled across the workers:
+//
+// - Each worker's analyzer has its own sketch, and its own share of the memory budget, so which links
+//   are promoted, and which are evicted under memory pressure, depends on the links it's given.
+// - The workers share an OffsetEstimator that's fed as links are analyzed, so whether a link starts
+//   out knowing its BSS's offset depends on which of the BSS's other links were analyzed before it.
+public class OfflineAnalyzer
+{
+    private final static int CHUNK_SIZE = 16 * 1024 * 1024;
+    private final static int BOUNDARY_SEARCH_SIZE = 64 * 1024;
+    private final static int INITIAL_LENGTHS = 16;
+    private final static int LINK_LENGTH = 3; // The partition, source and destination of each link.
+
+    private final ForkJoinPool pool;
+    private final SolutionListener listener;
+    private final ThreadLocal<Analyzer> analyzers;
+    private final OffsetEstimator offsetEstimator = new OffsetEstimator();
+
+    // Read by the worker threads when each creates its analyzer.
+    private volatile long memoryBudget = Analyzer.DEFAULT_MEMORY_BUDGET;
+
+    public OfflineAnalyzer(int parallelism, SolutionListener listener)
+    {
+        this.pool = new ForkJoinPool(parallelism);
+        this.listener = listener;
+
+        final SolutionListener sink = new SolutionListener()
+        {
+            @Override
+            public void solved(Solution solution)
+            {
+                merge(solution);
+            }
+        };
+
+        analyzers = new ThreadLocal<Analyzer>()
+        {
+            @Override
+            protected Analyzer initialValue()
+            {
+                Analyzer analyzer = new Analyzer(sink);
+
+                analyzer.setMemoryBudget(memoryBudget / pool.getParallelism());
+                analyzer.setOffsetEstimator(offsetEstimator);
+
+                return analyzer;
+            }
+        };
+    }
+
+    // The budget is shared equally between the worker threads. This must be set before analyze(...) is called.
+    public void setMemoryBudget(long bytes) { this.memoryBudget = bytes; }
+
+    // Returns the number of links that were seen in the file.
+    public int analyze(File file) throws IOException
+    {
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r"))
+        {
+            FileChannel channel = randomAccessFile.getChannel();
+            List<MappedByteBuffer> chunks = split(channel);
+            @SuppressWarnings({ "unchecked", "rawtypes" })
+            LinkTable<Lengths>[] parsed = new LinkTable[chunks.size()];
+
+            pool.invoke(new ParseTask(chunks, parsed, 0, chunks.size()));
+
+            LinkTable<List<Lengths>> grouped = group(parsed);
+            long[] links = new long[grouped.size() * LINK_LENGTH];
+            int count = 0;
+
+            for (int slot = 0; slot < grouped.capacity(); slot++)
+            {
+                if (grouped.isOccupied(slot))
+                {
+                    links[count++] = grouped.getPartition(slot);
+                    links[count++] = grouped.getSource(slot);
+                    links[count++] = grouped.getDestination(slot);
+                }
+            }
+
+            pool.invoke(new AnalyzeTask(grouped, links, 0, grouped.size()));
+
+            return grouped.size();
+        }
+    }
+
+    public void shutdown()
+    {
+        pool.shutdown();
+    }
+
+    private synchronized void merge(Solution solution)
+    {
+        listener.solved(solution);
+    }
+
+    // Splits the file into chunks of roughly CHUNK_SIZE bytes, each ending just after a line
+    // terminator (or at the end of the file). Mapping each chunk separately means the file can
+    // be bigger than the 2GB limit on a single mapping.
+    private static List<MappedByteBuffer> split(FileChannel channel) throws IOException
+    {
+        List<MappedByteBuffer> result = new ArrayList<>();
+        ByteBuffer search = ByteBuffer.allocate(BOUNDARY_SEARCH_SIZE);
+        long size = channel.size();
+        long start = 0;
+
+        while (start < size)
+        {
+            long end = Math.min(start + CHUNK_SIZE, size);
+
+            while (end < size)
+            {
+                search.clear();
+
+                int count = channel.read(search, end);
+
+                if (count <= 0)
+                {
+                    end = size; // The file has been truncated since its size was read.
+                    break;
+                }
+
+                int i = 0;
+
+                while (i < count && search.get(i) != '\n' && search.get(i) != '\r')
+                {
+                    i++;
+                }
+
+                end += (i < count) ? i + 1 : count;
+
+                if (i < count)
+                {
+                    break;
+                }
+            }
+
+            result.add(channel.map(FileChannel.MapMode.READ_ONLY, start, end - start));
+            start = end;
+        }
+
+        return result;
+    }
+
+    // Appends each chunk's lengths for a link, in chunk order, to the link's list of lengths.
+    private static LinkTable<List<Lengths>> group(LinkTable<Lengths>[] parsed)
+    {
+        LinkTable<List<Lengths>> result = new LinkTable<>();
+
+        for (int i = 0; i < parsed.length; i++)
+        {
+            LinkTable<Lengths> chunk = parsed[i];
+
+            for (int slot = 0; slot < chunk.capacity(); slot++)
+            {
+                if (chunk.isOccupied(slot))
+                {
+                    long partition = chunk.getPartition(slot);
+                    long source = chunk.getSource(slot);
+                    long destination = chunk.getDestination(slot);
+                    List<Lengths> lengths = result.get(partition, source, destination);
+
+                    if (lengths == null)
+                    {
+                        lengths = new ArrayList<>(1);
+                        result.put(partition, source, destination, lengths);
+                    }
+
+                    lengths.add(chunk.getValue(slot));
+                }
+            }
+
+            parsed[i] = null; // Only the lengths are still needed.
+        }
+
+        return result;
+    }
+
+    @SuppressWarnings("serial")
+    private class ParseTask extends RecursiveAction
+    {
+        private final List<MappedByteBuffer> chunks;
+        private final LinkTable<Lengths>[] parsed;
+        private final int start;
+        private final int end;
+
+        public ParseTask(List<MappedByteBuffer> chunks, LinkTable<Lengths>[] parsed, int start, int end)
+        {
+            this.chunks = chunks;
+            this.parsed = parsed;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected void compute()
+        {
+            if (end - start > 1)
+            {
+                int middle = (start + end) >>> 1;
+
+                invokeAll(new ParseTask(chunks, parsed, start, middle), new ParseTask(chunks, parsed, middle, end));
+                return;
+            }
+
+            if (start == end)
+            {
+                return;
+            }
+
+            final LinkTable<Lengths> table = new LinkTable<>();
+
+            try
+            {
+                new TsvFrameReader(new BufferChannel(chunks.get(start))).read(new FrameHandler()
+                {
+                    @Override
+                    public boolean process(long micros, long bssid, int frequency, long source, long destination, int length)
+                    {
+                        long partition = Partitions.of(bssid, frequency);
+                        Lengths lengths = table.get(partition, source, destination);
+
+                        if (lengths == null)
+                        {
+                            lengths = new Lengths();
+                            table.put(partition, source, destination, lengths);
+                        }
+
+                        lengths.add(length);
+
+                        return false;
+                    }
+                });
+            }
+            catch (IOException e)
+            {
+                throw new AssertionError(e); // Reading from memory can't fail.
+            }
+
+            parsed[start] = table;
+        }
+    }
+
+    @SuppressWarnings("serial")
+    private class AnalyzeTask extends RecursiveAction
+    {
+        private final LinkTable<List<Lengths>> grouped;
+        private final long[] links;
+        private final int start;
+        private final int end;
+
+        public AnalyzeTask(LinkTable<List<Lengths>> grouped, long[] links, int start, int end)
+        {
+            this.grouped = grouped;
+            this.links = links;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected void compute()
+        {
+            if (end - start > 1)
+            {
+                int middle = (start + end) >>> 1;
+
+                invokeAll(new AnalyzeTask(grouped, links, start, middle), new AnalyzeTask(grouped, links, middle, end));
+                return;
+            }
+
+            if (start == end)
+            {
+                return;
+            }
+
+            Analyzer analyzer = analyzers.get();
+            int link = start * LINK_LENGTH;
+            long partition = links[link];
+            long source = links[link + 1];
+            long destination = links[link + 2];
+            long bssid = Partitions.getBssid(partition);
+            int frequency = Partitions.getFrequency(partition);
+
+            for (Lengths lengths : grouped.get(partition, source, destination))
+            {
+                for (int i = 0; i < lengths.size; i++)
+                {
+                    analyzer.process(FrameHandler.NO_TIMESTAMP, bssid, frequency, source, destination, lengths.values[i]);
+                }
+            }
+
+            // The link won't be seen again so there's no point in the analyzer continuing to track it.
+            analyzer.forget(partition, source, destination);
+        }
+    }
+
+    private static class Lengths
+    {
+        private int[] values = new int[INITIAL_LENGTHS];
+        private int size = 0;
+
+        public void add(int length)
+        {
+            if (size == values.length)
+            {
+                values = Arrays.copyOf(values, size * 2);
+            }
+
+            values[size++] = length;
+        }
+    }
+
+    // Presents a mapped chunk as a channel so that it can be read by TsvFrameReader.
+    private static class BufferChannel implements ReadableByteChannel
+    {
+        private final ByteBuffer source;
+
+        public BufferChannel(ByteBuffer source)
+        {
+            this.source = source;
+        }
+
+        @Override
+        public int read(ByteBuffer dst)
+        {
+            if (!source.hasRemaining())
+            {
+                return -1;
+            }
+
+            int count = Math.min(dst.remaining(), source.remaining());
+            int limit = source.limit();
+
+            source.limit(source.position() + count);
+            dst.put(source);
+            source.limit(limit);
+
+            return count;
+        }
+
+        @Override
+        public boolean isOpen() { return true; }
+
+        @Override
+        public void close() { }
+    }
+}
@@ -0,0 +1,178 @@
+/**
+ * Copyright 2013 George C. Hawkins
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.betaengine.smartconfig.device.decoder;
+
+// Estimates the encryption offset, i.e. the consistent change in size introduced by encryption, of
+// each BSS. Every client of a BSS uses the same cipher so, rather than each link having to discover
+// the offset for itself by trying a decoder for every plausible separator pair, the offsets that
+// links on a BSS have confirmed, i.e. that led to a decoder seeing a tag, are gathered into a
+// histogram. Once one offset clearly dominates, links on that BSS mostly only get a decoder for it,
+// each link may still try a single other offset at a time so that contrary evidence continues to be
+// gathered, e.g. if the estimate was wrong or the BSS has been reconfigured.
+//
+// Each link reports a given offset at most once, so a hit is a link agreeing on the offset and a
+// single busy link can't swamp the others. An estimate is only made once enough links agree and the
+// top offset has most of the hits. Counts are halved once the total reaches DECAY_TOTAL so the
+// estimate follows any change, e.g. if the BSS is reconfigured, and a BSS whose hits stop agreeing
+// simply goes back to having no estimate.
+//
+// The estimator can be shared between analyzers, e.g. by the workers of a ParallelAnalyzer. Hits are
+// only recorded when a link first confirms an offset and estimates are only read when a link is
+// promoted or adapts, i.e. every few dozen frames, so simple locking is enough. It isn't
+// checkpointed, the hits are quickly seen again.
+public class OffsetEstimator
+{
+    public final static int UNKNOWN = Integer.MIN_VALUE;
+
+    private final static int MAX_OFFSETS = 16;
+    private final static int MIN_HITS = 4;
+    private final static int MIN_SHARE_PERCENT = 90;
+    private final static int DECAY_TOTAL = 256;
+
+    // Keyed by BSSID alone, the offset doesn't depend on the channel.
+    private final LinkTable<Histogram> histograms = new LinkTable<>();
+
+    // Frames with an unknown BSSID can't be assumed to share a BSS so they're ignored.
+    public synchronized void record(long bssid, int offset)
+    {
+        if (bssid == MacAddresses.INVALID)
+        {
+            return;
+        }
+
+        Histogram histogram = histograms.get(0, bssid, 0);
+
+        if (histogram == null)
+        {
+            histogram = new Histogram();
+            histograms.put(0, bssid, 0, histogram);
+        }
+
+        histogram.add(offset);
+    }
+
+    // Returns the estimated offset for the given BSS or UNKNOWN if there's no confident estimate.
+    public synchronized int getOffset(long bssid)
+    {
+        Histogram histogram = (bssid == MacAddresses.INVALID) ? null : histograms.get(0, bssid, 0);
+
+        return (histogram != null) ? histogram.estimate : UNKNOWN;
+    }
+
+    // There are only ever a handful of plausible offsets so they're held in short parallel arrays.
+    private static class Histogram
+    {
+        private final int[] offsets = new int[MAX_OFFSETS];
+        private final int[] counts = new int[MAX_OFFSETS];
+        private int size = 0;
+        private int total = 0;
+        private int estimate = UNKNOWN;
+
+        public void add(int offset)
+        {
+            int index = indexOf(offset);
+
+            if (index < 0)
+            {
+                // If full then the least common offset is replaced.
+                index = (size < MAX_OFFSETS) ? size++ : indexOfLowest();
+                total -= counts[index];
+                offsets[index] = offset;
+                counts[index] = 0;
+            }
+
+            counts[index]++;
+            total++;
+
+            if (total >= DECAY_TOTAL)
+            {
+                decay();
+            }
+
+            estimate = estimate();
+        }
+
+        private int estimate()
+        {
+            int top = indexOfHighest();
+
+            return (top >= 0 && total >= MIN_HITS && counts[top] * 100L >= total * (long)MIN_SHARE_PERCENT) ? offsets[top] : UNKNOWN;
+        }
+
+        private void decay()
+        {
+            int kept = 0;
+
+            total = 0;
+
+            for (int i = 0; i < size; i++)
+            {
+                if (counts[i] > 1)
+                {
+                    offsets[kept] = offsets[i];
+                    counts[kept] = counts[i] / 2;
+                    total += counts[kept];
+                    kept++;
+                }
+            }
+
+            size = kept;
+        }
+
+        private int indexOf(int offset)
+        {
+            for (int i = 0; i < size; i++)
+            {
+                if (offsets[i] == offset)
+                {
+                    return i;
+                }
+            }
+
+            return -1;
+        }
+
+        private int indexOfLowest()
+        {
+            int result = 0;
+
+            for (int i = 1; i < size; i++)
+            {
+                if (counts[i] < counts[result])
+                {
+                    result = i;
+                }
+            }
+
+            return result;
+        }
+
+        private int indexOfHighest()
+        {
+            int result = -1;
+
+            for (int i = 0; i < size; i++)
+            {
+                if (result < 0 || counts[i] > counts[result])
+                {
+                    result = i;
+                }
+            }
+
+            return result;
+        }
+    }
+}
@@ -0,0 +1,271 @@
+/**
+ * Copyright 2013 George C. Hawkins
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.betaengine.smartconfig.device.decoder;
+
+import java.io.DataInput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+// Spreads the work of an Analyzer across a number of worker threads. Frames are
+// assigned by link, including its partition (see Partitions), so all the frames
+// for a given link always go to the same worker, each worker has its own Analyzer and so owns its LinkManagers outright
+// and no locking is needed. Each worker is fed via its own FrameQueue so the only
+// shared state is the listener, which is called with the lock on this object held.
+//
+// process(...) must only ever be called from a single thread. If a worker fails then process(...), or
+// shutdown(), throws an IllegalStateException, rather than waiting forever for it to drain its queue.
+public class ParallelAnalyzer implements FrameHandler, Checkpoint.Restorer
+{
+    private final static int QUEUE_CAPACITY = 16 * 1024;
+    private final static int BATCH_SIZE = 256;
+    private final static long IDLE_PARK_NANOS = 100 * 1000;
+
+    private final Worker[] workers;
+    private final SolutionListener listener;
+    private final AtomicBoolean newSolution = new AtomicBoolean();
+    private final AtomicReference<Throwable> failure = new AtomicReference<>(); // The first worker failure, if any.
+
+    private volatile boolean shutdown = false;
+
+    public ParallelAnalyzer(int threadCount, SolutionListener listener)
+    {
+        if (threadCount <= 0)
+        {
+            throw new IllegalArgumentException("threadCount must be positive: " + threadCount);
+        }
+
+        this.listener = listener;
+        this.workers = new Worker[threadCount];
+
+        SolutionListener sink = new SolutionListener()
+        {
+            @Override
+            public void solved(Solution solution)
+            {
+                merge(solution);
+            }
+        };
+
+        // The links of a BSS are spread across the workers so they share a single offset estimator.
+        OffsetEstimator offsetEstimator = new OffsetEstimator();
+
+        for (int i = 0; i < threadCount; i++)
+        {
+            Analyzer analyzer = new Analyzer(sink);
+
+            analyzer.setOffsetEstimator(offsetEstimator);
+            workers[i] = new Worker(analyzer, "analyzer-" + i);
+            workers[i].thread.start();
+        }
+
+        setMemoryBudget(Analyzer.DEFAULT_MEMORY_BUDGET);
+    }
+
+    // The budget is shared equally between the workers.
+    public void setMemoryBudget(long bytes)
+    {
+        for (Worker worker : workers)
+        {
+            worker.analyzer.setMemoryBudget(bytes / workers.length);
+        }
+    }
+
+    public void setIdleTimeout(long millis)
+    {
+        for (Worker worker : workers)
+        {
+            worker.analyzer.setIdleTimeout(millis);
+        }
+    }
+
+    // The executor is shared by all the workers.
+    public void setSolverExecutor(Executor executor)
+    {
+        for (Worker worker : workers)
+        {
+            worker.analyzer.setSolverExecutor(executor);
+        }
+    }
+
+    public void setCheckpointInterval(long millis)
+    {
+        for (Worker worker : workers)
+        {
+            worker.analyzer.setCheckpointInterval(millis);
+        }
+    }
+
+    // The latest checkpoint of each worker that has taken one, see Analyzer.getLatestCheckpoint().
+    public List<byte[]> getLatestCheckpoints()
+    {
+        List<byte[]> result = new ArrayList<>(workers.length);
+
+        for (Worker worker : workers)
+        {
+            byte[] checkpoint = worker.analyzer.getLatestCheckpoint();
+
+            if (checkpoint != null)
+            {
+                result.add(checkpoint);
+            }
+        }
+
+        return result;
+    }
+
+    // Has every worker take a checkpoint, this must only be called once shutdown() has returned.
+    public void checkpoint()
+    {
+        for (Worker worker : workers)
+        {
+            worker.analyzer.checkpoint();
+        }
+    }
+
+    // Each link goes to the worker that its frames will go to, whichever worker it was checkpointed by.
+    // This must be done before process(...) is first called, the frame queues then ensure the workers
+    // see the restored state.
+    @Override
+    public void restore(long partition, long source, long destination, DataInput in) throws IOException
+    {
+        workers[getWorkerIndex(partition, source, destination)].analyzer.restore(partition, source, destination, in);
+    }
+
+    @Override
+    public void finishRestore(boolean success)
+    {
+        for (Worker worker : workers)
+        {
+            worker.analyzer.finishRestore(success);
+        }
+    }
+
+    // Unlike Analyzer, solving happens asynchronously so this returns true if any
+    // solution has been reported since the previous call.
+    @Override
+    public boolean process(long micros, long bssid, int frequency, long source, long destination, int length)
+    {
+        Worker worker = workers[getWorkerIndex(Partitions.of(bssid, frequency), source, destination)];
+
+        // If the worker is falling behind then the caller has to wait.
+        while (!worker.queue.offer(micros, bssid, frequency, source, destination, length))
+        {
+            checkWorkers();
+            LockSupport.unpark(worker.thread);
+            Thread.yield();
+        }
+
+        return newSolution.get() && newSolution.getAndSet(false);
+    }
+
+    // Waits for the workers to process all the frames queued so far and then stops them.
+    public void shutdown() throws InterruptedException
+    {
+        shutdown = true;
+
+        for (Worker worker : workers)
+        {
+            LockSupport.unpark(worker.thread);
+            worker.thread.join();
+        }
+
+        checkWorkers();
+    }
+
+    private void checkWorkers()
+    {
+        Throwable cause = failure.get();
+
+        if (cause != null)
+        {
+            throw new IllegalStateException("analyzer worker failed", cause);
+        }
+    }
+
+    // See Analyzer.flush(), this must only be called once shutdown() has returned.
+    public int flush()
+    {
+        int count = 0;
+
+        for (Worker worker : workers)
+        {
+            count += worker.analyzer.flush();
+        }
+
+        return count;
+    }
+
+    private synchronized void merge(Solution solution)
+    {
+        listener.solved(solution);
+        newSolution.set(true);
+    }
+
+    // The high bits of the hash are used as LinkTable uses the low bits, using the same
+    // bits for both would leave each worker's table with lots of colliding keys.
+    private int getWorkerIndex(long partition, long source, long destination)
+    {
+        long hash = LinkTable.hash(partition, source, destination) & 0xFFFFFFFFL;
+
+        return (int)((hash * workers.length) >>> 32);
+    }
+
+    private class Worker implements Runnable
+    {
+        private final FrameQueue queue = new FrameQueue(QUEUE_CAPACITY);
+        private final Analyzer analyzer;
+        private final Thread thread;
+
+        public Worker(Analyzer analyzer, String name)
+        {
+            this.analyzer = analyzer;
+            this.thread = new Thread(this, name);
+            thread.setDaemon(true);
+        }
+
+        @Override
+        public void run()
+        {
+            try
+            {
+                while (true)
+                {
+                    if (queue.drain(analyzer, BATCH_SIZE) == 0)
+                    {
+                        // The queue must be checked again after seeing the flag,
+                        // in case frames were added just before it was set.
+                        if (shutdown && queue.isEmpty())
+                        {
+                            return;
+                        }
+
+                        LockSupport.parkNanos(IDLE_PARK_NANOS);
+                    }
+                }
+            }
+            catch (RuntimeException | Error e)
+            {
+                // Nothing will drain this worker's queue now so the producer is told instead.
+                failure.compareAndSet(null, e);
+            }
+        }
+    }
+}
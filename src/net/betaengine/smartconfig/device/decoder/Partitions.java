@@ -0,0 +1,63 @@
+/**
+ * Copyright 2013 George C. Hawkins
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.betaengine.smartconfig.device.decoder;
+
+// Links are analyzed per partition, i.e. per BSS and channel, so that frames between the same
+// pair of addresses on different BSSes or channels don't end up in the same history. Like MAC
+// addresses, a partition is handled as a long, the BSSID in the high 48 bits and the frequency,
+// in MHz, in the low 16 bits, so no objects are needed.
+//
+// An unknown BSSID, i.e. MacAddresses.INVALID, is stored as the broadcast address, which is never
+// a BSSID, and an unknown frequency is stored as 0.
+public class Partitions
+{
+    private final static int FREQUENCY_BITS = 16;
+    private final static int FREQUENCY_MASK = (1 << FREQUENCY_BITS) - 1;
+    private final static long UNKNOWN_BSSID = 0xFFFFFFFFFFFFL;
+
+    // The partition of frames whose BSSID and frequency aren't known.
+    public final static long UNKNOWN = of(MacAddresses.INVALID, 0);
+
+    private Partitions() { }
+
+    public static long of(long bssid, int frequency)
+    {
+        long address = (bssid == MacAddresses.INVALID) ? UNKNOWN_BSSID : bssid & UNKNOWN_BSSID;
+
+        return (address << FREQUENCY_BITS) | ((frequency < 0 || frequency > FREQUENCY_MASK) ? 0 : frequency);
+    }
+
+    public static long getBssid(long partition)
+    {
+        long address = partition >>> FREQUENCY_BITS;
+
+        return (address == UNKNOWN_BSSID) ? MacAddresses.INVALID : address;
+    }
+
+    public static int getFrequency(long partition)
+    {
+        return (int)partition & FREQUENCY_MASK;
+    }
+
+    public static String toString(long partition)
+    {
+        long bssid = getBssid(partition);
+        int frequency = getFrequency(partition);
+
+        return "BSS " + ((bssid == MacAddresses.INVALID) ? "unknown" : MacAddresses.toString(bssid)) +
+            ", " + ((frequency == 0) ? "unknown frequency" : frequency + " MHz");
+    }
+}
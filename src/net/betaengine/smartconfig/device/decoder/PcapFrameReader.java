@@ -0,0 +1,609 @@
+/**
+ * Copyright 2013 George C. Hawkins
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.betaengine.smartconfig.device.decoder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ReadableByteChannel;
+
+// Reads classic pcap or pcapng captures, e.g. as written by "tshark -w -" or "tcpdump -w -",
+// and passes the BSSID, channel frequency, source, destination and payload length of each
+// non-retried QoS data frame to the handler, i.e. it does the same job as the tshark filters and fields described in
+// the README without the cost of tshark formatting every frame as text.
+//
+// For pcap formats see http://wiki.wireshark.org/Development/LibpcapFileFormat and
+// http://www.winpcap.org/ntar/draft/PCAP-DumpFileFormat.html (pcapng), for radiotap
+// see http://www.radiotap.org and for the 802.11 header see IEEE 802.11-2012 section 8.2.
+public class PcapFrameReader implements FrameReader
+{
+    private final static int INITIAL_BUFFER_SIZE = 256 * 1024;
+
+    private final static int PCAP_MAGIC = 0xa1b2c3d4;
+    private final static int PCAP_NANOSECOND_MAGIC = 0xa1b23c4d;
+    private final static int PCAP_HEADER_LENGTH = 24;
+    private final static int PCAP_RECORD_HEADER_LENGTH = 16;
+
+    // No real capture has longer packets, tshark's default snap length is the same, so anything longer is
+    // corrupt. Without a cap a length near 2^31 would overflow or have fill(...) allocate gigabytes. Blocks
+    // are allowed a little more for their fixed fields and options.
+    private final static int MAX_CAPTURE_LENGTH = 256 * 1024;
+    private final static int MAX_BLOCK_LENGTH = MAX_CAPTURE_LENGTH + (64 * 1024);
+
+    private final static int PCAPNG_SECTION_HEADER = 0x0a0d0d0a;
+    private final static int PCAPNG_BYTE_ORDER_MAGIC = 0x1a2b3c4d;
+    private final static int PCAPNG_INTERFACE_DESCRIPTION = 1;
+    private final static int PCAPNG_PACKET = 2; // Obsolete but still readable.
+    private final static int PCAPNG_SIMPLE_PACKET = 3;
+    private final static int PCAPNG_ENHANCED_PACKET = 6;
+    private final static int PCAPNG_MAX_INTERFACES = 64;
+
+    // The block header and trailer plus the fixed fields of an enhanced, or obsolete, packet block.
+    private final static int PCAPNG_PACKET_OVERHEAD = 32;
+    private final static int PCAPNG_OPTION_END = 0;
+    private final static int PCAPNG_IF_TSRESOL = 9;
+    private final static long DEFAULT_TIMESTAMP_UNITS = 1000000; // Units per second, i.e. microseconds.
+
+    // Timestamps with a finer resolution than this can't be converted to microseconds without overflowing.
+    private final static int MAX_DECIMAL_RESOLUTION = 12;
+    private final static int MAX_BINARY_RESOLUTION = 40;
+
+    private final static int LINKTYPE_IEEE802_11 = 105;
+    private final static int LINKTYPE_IEEE802_11_RADIOTAP = 127;
+
+    private final static int RADIOTAP_FLAGS = 1;
+    private final static int RADIOTAP_CHANNEL = 3;
+    private final static int RADIOTAP_EXT = 31;
+
+    // The sizes and alignments of the radiotap fields that precede, and include, the channel field,
+    // i.e. TSFT, flags, rate and channel. The position of a field depends on those before it.
+    private final static int[] RADIOTAP_SIZES = { 8, 1, 1, 4 };
+    private final static int[] RADIOTAP_ALIGNMENTS = { 8, 1, 1, 2 };
+
+    private final static int RADIOTAP_FLAG_FCS = 0x10;
+    private final static int RADIOTAP_FLAG_BAD_FCS = 0x40;
+
+    private final static int FCS_LENGTH = 4;
+
+    private final static int QOS_DATA = 0x88; // Type 2 (data) and subtype 8 (QoS data).
+    private final static int TO_DS = 0x01;
+    private final static int FROM_DS = 0x02;
+    private final static int RETRY = 0x08;
+    private final static int PROTECTED = 0x40;
+    private final static int ORDER = 0x80;
+    private final static int EXT_IV = 0x20;
+
+    private final static int HEADER_LENGTH = 24;
+    private final static int ADDRESS_4_LENGTH = 6;
+    private final static int QOS_CONTROL_LENGTH = 2;
+    private final static int HT_CONTROL_LENGTH = 4;
+    private final static int WEP_IV_LENGTH = 4;
+    private final static int EXT_IV_LENGTH = 8; // The TKIP and CCMP header length.
+
+    private final static int METRICS_BATCH_SIZE = 4096;
+
+    private final static DecoderMetrics metrics = DecoderMetrics.getInstance();
+
+    private final ReadableByteChannel channel;
+    private ByteBuffer buffer = ByteBuffer.allocateDirect(INITIAL_BUFFER_SIZE);
+    private boolean endOfInput = false;
+
+    // The link types, and snap lengths, of the interfaces of the current pcapng section.
+    private final int[] linkTypes = new int[PCAPNG_MAX_INTERFACES];
+    private final int[] snapLengths = new int[PCAPNG_MAX_INTERFACES];
+    private final long[] timestampUnits = new long[PCAPNG_MAX_INTERFACES]; // Zero if the resolution isn't usable.
+    private int interfaceCount = 0;
+
+    // Classic pcap captures record either microseconds or nanoseconds, depending on their magic number.
+    private boolean nanosecondTimestamps = false;
+
+    // Counts are kept locally and only added to the shared metrics in batches.
+    // Every packet that doesn't result in a frame being passed on counts as rejected.
+    private long packetCount = 0;
+    private long parsedCount = 0;
+
+    public PcapFrameReader(ReadableByteChannel channel)
+    {
+        this.channel = channel;
+        buffer.limit(0);
+    }
+
+    @Override
+    public boolean read(FrameHandler handler) throws IOException
+    {
+        if (!fill(4))
+        {
+            return false;
+        }
+
+        int magic = buffer.order(ByteOrder.BIG_ENDIAN).getInt(buffer.position());
+
+        try
+        {
+            return (magic == PCAPNG_SECTION_HEADER) ? readPcapng(handler) : readPcap(handler);
+        }
+        finally
+        {
+            publishCounts();
+        }
+    }
+
+    private void publishCounts()
+    {
+        metrics.framesParsed(parsedCount);
+        metrics.framesRejected(packetCount - parsedCount);
+        packetCount = 0;
+        parsedCount = 0;
+    }
+
+    private boolean readPcap(FrameHandler handler) throws IOException
+    {
+        if (!fill(PCAP_HEADER_LENGTH))
+        {
+            throw new IOException("truncated pcap header");
+        }
+
+        int start = buffer.position();
+
+        if (!setByteOrder(buffer.getInt(start), PCAP_MAGIC) && !setByteOrder(buffer.getInt(start), PCAP_NANOSECOND_MAGIC))
+        {
+            throw new IOException("unrecognized capture format");
+        }
+
+        int snapLength = buffer.getInt(start + 16);
+        int maxCaptureLength = (snapLength > 0 && snapLength < MAX_CAPTURE_LENGTH) ? snapLength : MAX_CAPTURE_LENGTH;
+        int linkType = buffer.getInt(start + 20) & 0xFFFF;
+
+        nanosecondTimestamps = buffer.getInt(start) == PCAP_NANOSECOND_MAGIC;
+        checkLinkType(linkType);
+        buffer.position(start + PCAP_HEADER_LENGTH);
+
+        while (fill(PCAP_RECORD_HEADER_LENGTH))
+        {
+            int captureLength = buffer.getInt(buffer.position() + 8);
+
+            if (captureLength < 0 || captureLength > maxCaptureLength)
+            {
+                throw new IOException("corrupt pcap record, captured length " + captureLength);
+            }
+
+            if (!fill(PCAP_RECORD_HEADER_LENGTH + captureLength))
+            {
+                break; // A truncated final record, e.g. if the capture was killed.
+            }
+
+            int record = buffer.position();
+            int packet = record + PCAP_RECORD_HEADER_LENGTH;
+            long seconds = buffer.getInt(record) & 0xFFFFFFFFL;
+            long fraction = buffer.getInt(record + 4) & 0xFFFFFFFFL;
+            long micros = (seconds * 1000000) + (nanosecondTimestamps ? fraction / 1000 : fraction);
+
+            buffer.position(packet + captureLength);
+
+            if (handlePacket(handler, linkType, micros, packet, captureLength))
+            {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private boolean readPcapng(FrameHandler handler) throws IOException
+    {
+        // Blocks are at least 12 bytes, i.e. the type, total length and repeated total length.
+        // Note: fill(...) may move the data in the buffer so positions are only
+        // calculated once the required data is known to be available.
+        while (fill(12))
+        {
+            int type = buffer.getInt(buffer.position());
+
+            if (type == PCAPNG_SECTION_HEADER)
+            {
+                if (!fill(16))
+                {
+                    break;
+                }
+
+                // The byte order magic tells us the byte order of everything in this section.
+                if (!setByteOrder(buffer.getInt(buffer.position() + 8), PCAPNG_BYTE_ORDER_MAGIC))
+                {
+                    throw new IOException("invalid pcapng section header");
+                }
+
+                interfaceCount = 0;
+            }
+
+            int blockLength = buffer.getInt(buffer.position() + 4);
+
+            if (blockLength < 12 || blockLength > MAX_BLOCK_LENGTH)
+            {
+                throw new IOException("corrupt pcapng block, length " + blockLength);
+            }
+
+            if (!fill(blockLength))
+            {
+                break;
+            }
+
+            int block = buffer.position();
+
+            buffer.position(block + blockLength);
+
+            if (handleBlock(handler, type, block, blockLength))
+            {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private boolean handleBlock(FrameHandler handler, int type, int block, int blockLength) throws IOException
+    {
+        int body = block + 8;
+
+        switch (type)
+        {
+        case PCAPNG_INTERFACE_DESCRIPTION:
+            if (interfaceCount < PCAPNG_MAX_INTERFACES)
+            {
+                linkTypes[interfaceCount] = buffer.getShort(body) & 0xFFFF;
+                snapLengths[interfaceCount] = buffer.getInt(body + 4);
+                timestampUnits[interfaceCount] = getTimestampUnits(body + 8, block + blockLength - 4);
+                interfaceCount++;
+            }
+            return false;
+        case PCAPNG_ENHANCED_PACKET:
+            return isPacketInBlock(body, blockLength) && handleInterfacePacket(handler, buffer.getInt(body), getTimestamp(body + 4), body + 20, buffer.getInt(body + 12));
+        case PCAPNG_PACKET:
+            return isPacketInBlock(body, blockLength) && handleInterfacePacket(handler, buffer.getShort(body) & 0xFFFF, getTimestamp(body + 4), body + 20, buffer.getInt(body + 12));
+        case PCAPNG_SIMPLE_PACKET:
+            // The captured length is implied by the block length and the snap length.
+            int length = Math.min(buffer.getInt(body), blockLength - 16);
+
+            if (interfaceCount > 0 && snapLengths[0] > 0)
+            {
+                length = Math.min(length, snapLengths[0]);
+            }
+
+            return handleInterfacePacket(handler, 0, FrameHandler.NO_TIMESTAMP, body + 4, length);
+        default:
+            return false; // Statistics, name resolution, custom blocks etc.
+        }
+    }
+
+    // A corrupt captured length could otherwise take the packet into the blocks that follow, or past the buffer.
+    private boolean isPacketInBlock(int body, int blockLength)
+    {
+        if (blockLength < PCAPNG_PACKET_OVERHEAD)
+        {
+            return false;
+        }
+
+        int captureLength = buffer.getInt(body + 12);
+
+        return captureLength >= 0 && captureLength <= blockLength - PCAPNG_PACKET_OVERHEAD;
+    }
+
+    // The timestamp is in the interface's units, see getTimestampUnits(...).
+    private boolean handleInterfacePacket(FrameHandler handler, int interfaceId, long timestamp, int packet, int captureLength) throws IOException
+    {
+        if (interfaceId < 0 || interfaceId >= interfaceCount)
+        {
+            return false;
+        }
+
+        int linkType = linkTypes[interfaceId];
+
+        checkLinkType(linkType);
+
+        long units = timestampUnits[interfaceId];
+        long micros = (timestamp == FrameHandler.NO_TIMESTAMP || units == 0)
+            ? FrameHandler.NO_TIMESTAMP
+            : ((timestamp / units) * 1000000) + ((timestamp % units) * 1000000 / units);
+
+        return handlePacket(handler, linkType, micros, packet, captureLength);
+    }
+
+    // Returns the pcapng timestamp, i.e. a high and then a low 32 bit word, at the given position.
+    private long getTimestamp(int position)
+    {
+        return ((buffer.getInt(position) & 0xFFFFFFFFL) << 32) | (buffer.getInt(position + 4) & 0xFFFFFFFFL);
+    }
+
+    // Returns the interface's timestamp units per second, as given by its if_tsresol option, or 0 if they
+    // can't be converted to microseconds. The options run from start to end.
+    private long getTimestampUnits(int start, int end)
+    {
+        int option = start;
+
+        while (option + 4 <= end)
+        {
+            int code = buffer.getShort(option) & 0xFFFF;
+            int length = buffer.getShort(option + 2) & 0xFFFF;
+
+            if (code == PCAPNG_OPTION_END || option + 4 + length > end)
+            {
+                break;
+            }
+
+            if (code == PCAPNG_IF_TSRESOL && length >= 1)
+            {
+                int resolution = buffer.get(option + 4) & 0xFF;
+                int exponent = resolution & 0x7F;
+
+                // The high bit selects a power of 2, rather than 10, resolution.
+                if ((resolution & 0x80) != 0)
+                {
+                    return (exponent <= MAX_BINARY_RESOLUTION) ? 1L << exponent : 0;
+                }
+
+                long units = 1;
+
+                for (int i = 0; i < exponent; i++)
+                {
+                    units *= 10;
+                }
+
+                return (exponent <= MAX_DECIMAL_RESOLUTION) ? units : 0;
+            }
+
+            option += 4 + ((length + 3) & ~3); // Option values are padded to 32 bits.
+        }
+
+        return DEFAULT_TIMESTAMP_UNITS;
+    }
+
+    private boolean handlePacket(FrameHandler handler, int linkType, long micros, int packet, int captureLength)
+    {
+        if (packetCount == METRICS_BATCH_SIZE)
+        {
+            publishCounts();
+        }
+
+        packetCount++;
+
+        int frame = packet;
+        int frameLength = captureLength;
+        int frequency = 0;
+
+        if (linkType == LINKTYPE_IEEE802_11_RADIOTAP)
+        {
+            if (captureLength < 8)
+            {
+                return false;
+            }
+
+            int radiotapLength = getLittleEndianShort(packet + 2);
+
+            if (radiotapLength > captureLength)
+            {
+                return false;
+            }
+
+            int flagsOffset = getRadiotapField(packet, radiotapLength, RADIOTAP_FLAGS);
+            int flags = (flagsOffset < 0) ? 0 : buffer.get(packet + flagsOffset) & 0xFF;
+
+            if ((flags & RADIOTAP_FLAG_BAD_FCS) != 0)
+            {
+                return false;
+            }
+
+            int channelOffset = getRadiotapField(packet, radiotapLength, RADIOTAP_CHANNEL);
+
+            if (channelOffset >= 0)
+            {
+                frequency = getLittleEndianShort(packet + channelOffset);
+            }
+
+            frame += radiotapLength;
+            frameLength -= radiotapLength;
+
+            if ((flags & RADIOTAP_FLAG_FCS) != 0)
+            {
+                frameLength -= FCS_LENGTH;
+            }
+        }
+
+        return handleFrame(handler, micros, frequency, frame, frameLength);
+    }
+
+    // Returns the offset, relative to the header, of the given radiotap field, or -1 if it isn't present.
+    // Radiotap fields are little endian and aligned to their natural size relative to the start of the header.
+    private int getRadiotapField(int header, int headerLength, int field)
+    {
+        int present = getLittleEndianInt(header + 4);
+        int offset = 8;
+
+        // Skip over any extended present bitmaps.
+        while ((getLittleEndianInt(header + offset - 4) & (1 << RADIOTAP_EXT)) != 0 && offset < headerLength)
+        {
+            offset += 4;
+        }
+
+        if ((present & (1 << field)) == 0)
+        {
+            return -1;
+        }
+
+        for (int i = 0; i < field; i++)
+        {
+            if ((present & (1 << i)) != 0)
+            {
+                offset = align(offset, RADIOTAP_ALIGNMENTS[i]) + RADIOTAP_SIZES[i];
+            }
+        }
+
+        offset = align(offset, RADIOTAP_ALIGNMENTS[field]);
+
+        return (offset + RADIOTAP_SIZES[field] <= headerLength) ? offset : -1;
+    }
+
+    private static int align(int offset, int alignment)
+    {
+        return (offset + alignment - 1) & ~(alignment - 1);
+    }
+
+    private boolean handleFrame(FrameHandler handler, long micros, int frequency, int frame, int frameLength)
+    {
+        if (frameLength < HEADER_LENGTH + QOS_CONTROL_LENGTH)
+        {
+            return false;
+        }
+
+        int frameType = buffer.get(frame) & 0xFF;
+        int flags = buffer.get(frame + 1) & 0xFF;
+
+        // Equivalent to the capture filter "subtype qos-data" and display filter "wlan.fc.retry==0".
+        if (frameType != QOS_DATA || (flags & RETRY) != 0)
+        {
+            return false;
+        }
+
+        int headerLength = HEADER_LENGTH + QOS_CONTROL_LENGTH;
+        long bssid;
+        long source;
+        long destination;
+
+        // The meaning of the address fields depends on the direction of the frame. A frame
+        // between access points, i.e. with both bits set, doesn't identify a single BSS.
+        switch (flags & (TO_DS | FROM_DS))
+        {
+        case 0:
+            destination = MacAddresses.read(buffer, frame + 4);
+            source = MacAddresses.read(buffer, frame + 10);
+            bssid = MacAddresses.read(buffer, frame + 16);
+            break;
+        case TO_DS:
+            bssid = MacAddresses.read(buffer, frame + 4);
+            source = MacAddresses.read(buffer, frame + 10);
+            destination = MacAddresses.read(buffer, frame + 16);
+            break;
+        case FROM_DS:
+            destination = MacAddresses.read(buffer, frame + 4);
+            bssid = MacAddresses.read(buffer, frame + 10);
+            source = MacAddresses.read(buffer, frame + 16);
+            break;
+        default:
+            if (frameLength < HEADER_LENGTH + ADDRESS_4_LENGTH + QOS_CONTROL_LENGTH)
+            {
+                return false;
+            }
+
+            destination = MacAddresses.read(buffer, frame + 16);
+            source = MacAddresses.read(buffer, frame + 24);
+            bssid = MacAddresses.INVALID;
+            headerLength += ADDRESS_4_LENGTH;
+            break;
+        }
+
+        if ((flags & ORDER) != 0)
+        {
+            headerLength += HT_CONTROL_LENGTH;
+        }
+
+        // Like tshark, with decryption disabled, we don't count the security header as data.
+        // The decoder works out any other consistent overhead for itself.
+        if ((flags & PROTECTED) != 0 && frameLength >= headerLength + WEP_IV_LENGTH)
+        {
+            boolean extIv = (buffer.get(frame + headerLength + 3) & EXT_IV) != 0;
+
+            headerLength += extIv ? EXT_IV_LENGTH : WEP_IV_LENGTH;
+        }
+
+        int length = frameLength - headerLength;
+
+        if (length <= 0)
+        {
+            return false;
+        }
+
+        parsedCount++;
+
+        return handler.process(micros, bssid, frequency, source, destination, length);
+    }
+
+    private void checkLinkType(int linkType) throws IOException
+    {
+        if (linkType != LINKTYPE_IEEE802_11 && linkType != LINKTYPE_IEEE802_11_RADIOTAP)
+        {
+            throw new IOException("unsupported link type " + linkType + ", capture in monitor mode, e.g. with tshark -I");
+        }
+    }
+
+    // Radiotap fields are always little endian whatever the byte order of the capture file.
+    private int getLittleEndianShort(int position)
+    {
+        return (buffer.get(position) & 0xFF) | ((buffer.get(position + 1) & 0xFF) << 8);
+    }
+
+    private int getLittleEndianInt(int position)
+    {
+        return getLittleEndianShort(position) | (getLittleEndianShort(position + 2) << 16);
+    }
+
+    // Returns true if the given magic number matches in either byte order, setting the buffer's order accordingly.
+    private boolean setByteOrder(int value, int magic)
+    {
+        if (value == magic)
+        {
+            return true;
+        }
+
+        if (value == Integer.reverseBytes(magic))
+        {
+            ByteOrder order = buffer.order() == ByteOrder.BIG_ENDIAN ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+
+            buffer.order(order);
+
+            return true;
+        }
+
+        return false;
+    }
+
+    // Ensures that at least count bytes are available from the current position,
+    // growing the buffer if necessary. Returns false if the input is exhausted first.
+    private boolean fill(int count) throws IOException
+    {
+        while (buffer.remaining() < count)
+        {
+            if (endOfInput)
+            {
+                return false;
+            }
+
+            if (count > buffer.capacity())
+            {
+                ByteBuffer larger = ByteBuffer.allocateDirect(Integer.highestOneBit(count) << 1);
+
+                larger.order(buffer.order());
+                larger.put(buffer);
+                buffer = larger;
+            }
+            else
+            {
+                buffer.compact();
+            }
+
+            endOfInput = channel.read(buffer) == -1;
+            buffer.flip();
+        }
+
+        return true;
+    }
+}
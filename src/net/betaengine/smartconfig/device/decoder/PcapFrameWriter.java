@@ -0,0 +1,132 @@
+/**
+ * Copyright 2013 George C. Hawkins
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.betaengine.smartconfig.device.decoder;
+
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+// Writes frames as a classic pcap capture of radiotap and 802.11 QoS data frames, i.e.
+// the kind of capture that PcapFrameReader reads. Frames are sent from a station to the
+// access point, the payload is all zeros and timestamps simply advance by a fixed amount.
+public class PcapFrameWriter implements FrameWriter
+{
+    private final static int BUFFER_SIZE = 256 * 1024;
+    private final static int MAX_FRAME_LENGTH = 64 * 1024;
+
+    private final static int PCAP_MAGIC = 0xa1b2c3d4;
+    private final static int LINKTYPE_IEEE802_11_RADIOTAP = 127;
+
+    // A radiotap header with just the flags and channel fields present.
+    private final static int RADIOTAP_PRESENT = (1 << 1) | (1 << 3);
+    private final static int RADIOTAP_LENGTH = 14;
+    private final static int CHANNEL_FLAGS_2GHZ = 0x0080;
+    private final static int CHANNEL_FLAGS_5GHZ = 0x0100;
+
+    private final static int QOS_DATA = 0x88;
+    private final static int TO_DS = 0x01;
+    private final static int HEADER_LENGTH = 26; // Including the QoS control field.
+
+    private final static long INTERVAL_MICROS = 100;
+
+    private final OutputStream output;
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    private long timestamp = 0;
+
+    public PcapFrameWriter(OutputStream output)
+    {
+        this.output = output;
+
+        buffer.putInt(PCAP_MAGIC);
+        buffer.putShort((short)2); // Version 2.4.
+        buffer.putShort((short)4);
+        buffer.putInt(0); // GMT offset.
+        buffer.putInt(0); // Timestamp accuracy.
+        buffer.putInt(MAX_FRAME_LENGTH); // Snap length.
+        buffer.putInt(LINKTYPE_IEEE802_11_RADIOTAP);
+    }
+
+    @Override
+    public void write(long bssid, int frequency, long source, long destination, int length) throws IOException
+    {
+        int captureLength = RADIOTAP_LENGTH + HEADER_LENGTH + length;
+
+        if (length < 0 || captureLength > MAX_FRAME_LENGTH)
+        {
+            throw new IllegalArgumentException("invalid length: " + length);
+        }
+
+        if (buffer.remaining() < 16 + captureLength)
+        {
+            flushBuffer();
+        }
+
+        timestamp += INTERVAL_MICROS;
+
+        buffer.putInt((int)(timestamp / 1000000));
+        buffer.putInt((int)(timestamp % 1000000));
+        buffer.putInt(captureLength);
+        buffer.putInt(captureLength);
+
+        // Radiotap header.
+        buffer.put((byte)0); // Version.
+        buffer.put((byte)0); // Padding.
+        buffer.putShort((short)RADIOTAP_LENGTH);
+        buffer.putInt(RADIOTAP_PRESENT);
+        buffer.put((byte)0); // Flags - no FCS.
+        buffer.put((byte)0); // Padding to align the channel field.
+        buffer.putShort((short)frequency);
+        buffer.putShort((short)(frequency < 5000 ? CHANNEL_FLAGS_2GHZ : CHANNEL_FLAGS_5GHZ));
+
+        // 802.11 header.
+        buffer.put((byte)QOS_DATA);
+        buffer.put((byte)TO_DS);
+        buffer.putShort((short)0); // Duration.
+        putMac(bssid);
+        putMac(source);
+        putMac(destination);
+        buffer.putShort((short)0); // Sequence control.
+        buffer.putShort((short)0); // QoS control.
+
+        for (int i = 0; i < length; i++)
+        {
+            buffer.put((byte)0);
+        }
+    }
+
+    @Override
+    public void flush() throws IOException
+    {
+        flushBuffer();
+        output.flush();
+    }
+
+    private void flushBuffer() throws IOException
+    {
+        output.write(buffer.array(), 0, buffer.position());
+        buffer.clear();
+    }
+
+    private void putMac(long address)
+    {
+        for (int shift = 40; shift >= 0; shift -= 8)
+        {
+            buffer.put((byte)(address >>> shift));
+        }
+    }
+}
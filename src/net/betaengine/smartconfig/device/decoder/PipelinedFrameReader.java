@@ -0,0 +1,309 @@
+/**
+ * Copyright 2013 George C. Hawkins
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.betaengine.smartconfig.device.decoder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+// Splits reading frames into three stages, each on its own thread, so that a slow solve
+// never stops the input being read, e.g. from a tshark pipe that would otherwise fill up
+// and cause tshark to drop frames:
+//
+// - The reader stage reads the input in chunks into a ring of preallocated buffers.
+// - The parser stage runs the FrameReader, returned by createParser(...), over those chunks.
+// - The analyzer stage, i.e. the thread that calls read(...), passes the frames on to the handler.
+//
+// The parser hands frames to the analyzer stage via a FrameQueue. If the queue is full then,
+// depending on the backpressure setting, the parser either waits or drops the frame. Chunks
+// are never dropped, as losing part of the input would leave the parser out of step with
+// its format, so if the parser falls behind then the reader always waits.
+public abstract class PipelinedFrameReader implements FrameReader
+{
+    public enum Backpressure { BLOCK, DROP }
+
+    private final static int CHUNK_SIZE = 64 * 1024;
+    private final static int CHUNK_COUNT = 16; // Must be a power of 2.
+    private final static int QUEUE_CAPACITY = 64 * 1024;
+    private final static int BATCH_SIZE = 256;
+    private final static long IDLE_PARK_NANOS = 100 * 1000;
+
+    private final static DecoderMetrics metrics = DecoderMetrics.getInstance();
+
+    private final ReadableByteChannel input;
+    private final Backpressure backpressure;
+    private final ChunkChannel chunks = new ChunkChannel();
+    private final FrameQueue queue = new FrameQueue(QUEUE_CAPACITY);
+
+    // Set once the analyzer stage has finished, i.e. the handler asked to stop.
+    private volatile boolean stopped = false;
+    private volatile boolean parsed = false;
+    private volatile Exception failure = null;
+
+    public PipelinedFrameReader(ReadableByteChannel input, Backpressure backpressure)
+    {
+        this.input = input;
+        this.backpressure = backpressure;
+    }
+
+    // Returns the reader that the parser stage should use to read frames from the given channel.
+    protected abstract FrameReader createParser(ReadableByteChannel channel);
+
+    @Override
+    public boolean read(FrameHandler handler) throws IOException
+    {
+        Thread reader = new Thread(new Runnable()
+        {
+            @Override
+            public void run() { readInput(); }
+        }, "reader");
+        Thread parser = new Thread(new Runnable()
+        {
+            @Override
+            public void run() { parseInput(); }
+        }, "parser");
+
+        // If the analyzer stage stops early then the reader may be left blocked reading the input.
+        reader.setDaemon(true);
+        parser.setDaemon(true);
+        reader.start();
+        parser.start();
+
+        StoppingHandler stoppingHandler = new StoppingHandler(handler);
+
+        while (!stoppingHandler.done)
+        {
+            if (queue.drain(stoppingHandler, BATCH_SIZE) == 0)
+            {
+                // The queue must be checked again after seeing the flag,
+                // in case frames were added just before it was set.
+                if (parsed && queue.isEmpty())
+                {
+                    break;
+                }
+
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+            }
+        }
+
+        stopped = true;
+
+        try
+        {
+            parser.join();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+
+        if (failure != null)
+        {
+            throw (failure instanceof IOException) ? (IOException)failure : new IOException(failure);
+        }
+
+        return stoppingHandler.done;
+    }
+
+    private void readInput()
+    {
+        try
+        {
+            chunks.fill(input);
+        }
+        catch (IOException e)
+        {
+            failure = e;
+        }
+        finally
+        {
+            chunks.close();
+        }
+    }
+
+    private void parseInput()
+    {
+        try
+        {
+            createParser(chunks).read(new FrameHandler()
+            {
+                @Override
+                public boolean process(long micros, long bssid, int frequency, long source, long destination, int length)
+                {
+                    return enqueue(micros, bssid, frequency, source, destination, length);
+                }
+            });
+        }
+        catch (IOException | RuntimeException e)
+        {
+            // Any failure in the reader stage takes precedence as it's likely the cause.
+            if (failure == null)
+            {
+                failure = e;
+            }
+        }
+        finally
+        {
+            parsed = true;
+        }
+    }
+
+    // Returns true, i.e. tells the parser to stop, once the analyzer stage has stopped.
+    private boolean enqueue(long micros, long bssid, int frequency, long source, long destination, int length)
+    {
+        if (!queue.offer(micros, bssid, frequency, source, destination, length))
+        {
+            if (backpressure == Backpressure.DROP)
+            {
+                metrics.framesDropped(1);
+            }
+            else
+            {
+                metrics.pipelineStalled();
+
+                while (!stopped && !queue.offer(micros, bssid, frequency, source, destination, length))
+                {
+                    LockSupport.parkNanos(IDLE_PARK_NANOS);
+                }
+            }
+        }
+
+        return stopped;
+    }
+
+    // Once the handler asks to stop, any remaining frames in the current batch are ignored.
+    private static class StoppingHandler implements FrameHandler
+    {
+        private final FrameHandler handler;
+        private boolean done = false;
+
+        public StoppingHandler(FrameHandler handler)
+        {
+            this.handler = handler;
+        }
+
+        @Override
+        public boolean process(long micros, long bssid, int frequency, long source, long destination, int length)
+        {
+            if (!done)
+            {
+                done = handler.process(micros, bssid, frequency, source, destination, length);
+            }
+
+            return done;
+        }
+    }
+
+    // A ring of preallocated chunks, filled by the reader stage and presented to the parser stage
+    // as a channel. Like FrameQueue, it has a single producer and a single consumer and the head
+    // and tail are published with lazySet(...). A chunk is only handed back to the reader once the
+    // parser has read all of it.
+    private class ChunkChannel implements ReadableByteChannel
+    {
+        private final ByteBuffer[] chunks = new ByteBuffer[CHUNK_COUNT];
+        private final AtomicLong head = new AtomicLong();
+        private final AtomicLong tail = new AtomicLong();
+        private volatile boolean endOfInput = false;
+
+        public ChunkChannel()
+        {
+            for (int i = 0; i < CHUNK_COUNT; i++)
+            {
+                chunks[i] = ByteBuffer.allocateDirect(CHUNK_SIZE);
+            }
+        }
+
+        // Called by the reader stage.
+        public void fill(ReadableByteChannel channel) throws IOException
+        {
+            long t = tail.get();
+
+            while (!stopped)
+            {
+                if (t - head.get() == CHUNK_COUNT)
+                {
+                    LockSupport.parkNanos(IDLE_PARK_NANOS);
+                    continue;
+                }
+
+                ByteBuffer chunk = chunks[(int)t & (CHUNK_COUNT - 1)];
+
+                chunk.clear();
+
+                if (channel.read(chunk) == -1)
+                {
+                    return;
+                }
+
+                chunk.flip();
+
+                if (chunk.hasRemaining())
+                {
+                    tail.lazySet(++t);
+                }
+            }
+        }
+
+        // Called by the reader stage, the parser then sees the end of the input once it has read every chunk.
+        @Override
+        public void close()
+        {
+            endOfInput = true;
+        }
+
+        @Override
+        public boolean isOpen()
+        {
+            return !endOfInput;
+        }
+
+        // Called by the parser stage.
+        @Override
+        public int read(ByteBuffer dst)
+        {
+            long h = head.get();
+
+            while (h == tail.get())
+            {
+                // The tail must be checked again after seeing the flag,
+                // in case a chunk was added just before it was set.
+                if ((endOfInput && h == tail.get()) || stopped)
+                {
+                    return -1;
+                }
+
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+            }
+
+            ByteBuffer chunk = chunks[(int)h & (CHUNK_COUNT - 1)];
+            int count = Math.min(dst.remaining(), chunk.remaining());
+            int limit = chunk.limit();
+
+            chunk.limit(chunk.position() + count);
+            dst.put(chunk);
+            chunk.limit(limit);
+
+            if (!chunk.hasRemaining())
+            {
+                head.lazySet(h + 1);
+            }
+
+            return count;
+        }
+    }
+}
@@ -0,0 +1,127 @@
+/**
+ * Copyright 2013 George C. Hawkins
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.betaengine.smartconfig.device.decoder;
+
+import java.util.List;
+
+
+// The SSID and keyphrase decoded from the Smart Config traffic seen on a given link, within a given
+// partition, i.e. BSS and channel, see Partitions.
+// If the evidence supported more than one value then the alternatives are also kept,
+// best supported first.
+public class Solution
+{
+    private final long partition;
+    private final long source;
+    private final long destination;
+    private final String ssid;
+    private final String keyphrase;
+    private final List<String> ssidAlternatives;
+    private final List<String> keyphraseAlternatives;
+    
+    public Solution(long partition, long source, long destination, List<String> ssidAlternatives, List<String> keyphraseAlternatives)
+    {
+        this.partition = partition;
+        this.source = source;
+        this.destination = destination;
+        this.ssid = ssidAlternatives.get(0);
+        this.keyphrase = keyphraseAlternatives.get(0);
+        this.ssidAlternatives = ssidAlternatives;
+        this.keyphraseAlternatives = keyphraseAlternatives;
+    }
+    
+    public long getPartition() { return partition; }
+    
+    public long getBssid() { return Partitions.getBssid(partition); }
+    
+    public int getFrequency() { return Partitions.getFrequency(partition); }
+    
+    public long getSource() { return source; }
+    
+    public long getDestination() { return destination; }
+    
+    public String getSsid() { return ssid; }
+    
+    public String getKeyphrase() { return keyphrase; }
+    
+    public List<String> getSsidAlternatives() { return ssidAlternatives; }
+    
+    public List<String> getKeyphraseAlternatives() { return keyphraseAlternatives; }
+    
+    public boolean isAmbiguous()
+    {
+        return ssidAlternatives.size() > 1 || keyphraseAlternatives.size() > 1;
+    }
+    
+    public String getLink()
+    {
+        return MacAddresses.toString(source) + " -> " + MacAddresses.toString(destination);
+    }
+    
+    public boolean hasSameValues(Solution other)
+    {
+        return other != null && other.ssid.equals(ssid) && other.keyphrase.equals(keyphrase);
+    }
+    
+    @Override
+    public String toString()
+    {
+        String where = (partition == Partitions.UNKNOWN) ? "" : " (" + Partitions.toString(partition) + ")";
+        
+        return getLink() + where + " SSID: " + format(ssidAlternatives) + " keyphrase: " + format(keyphraseAlternatives);
+    }
+    
+    // Formats the value, followed by any less well supported alternatives, e.g. "[abc] (or [abd])".
+    public static String format(List<String> alternatives)
+    {
+        StringBuilder builder = new StringBuilder();
+        
+        builder.append('[').append(escape(alternatives.get(0))).append(']');
+        
+        for (int i = 1; i < alternatives.size(); i++)
+        {
+            builder.append(i == 1 ? " (or [" : ", [").append(escape(alternatives.get(i))).append(']');
+        }
+        
+        if (alternatives.size() > 1)
+        {
+            builder.append(')');
+        }
+        
+        return builder.toString();
+    }
+    
+    // Replaces any characters that are not printable ISO 8859-1 characters with a Unicode escape.
+    public static String escape(String s)
+    {
+        StringBuilder builder = new StringBuilder();
+        char[] chars = s.toCharArray();
+        
+        for (char c : chars)
+        {
+            if ((c >= ' ' && c <= '~') || (c >= '\u00A1' && c <= '\u00FF'))
+            {
+                builder.append(c);
+            }
+            else
+            {
+                builder.append(String.format("\\u%04X", (int)c));
+            }
+        }
+        
+        return builder.toString();
+    }
+}
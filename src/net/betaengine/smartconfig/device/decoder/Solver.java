@@ -15,130 +15,390 @@
  */
 package net.betaengine.smartconfig.device.decoder;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
-import java.util.HashSet;
-import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.Set;
 
 import com.google.common.base.Charsets;
-import com.google.common.collect.HashMultiset;
-import com.google.common.collect.Multiset;
-import com.google.common.collect.Multisets;
 
+// Each alternative, i.e. each run of data values seen after a tag, is placed as a set of
+// votes for the values seen at each nibble position. The votes are updated incrementally
+// as each alternative arrives so the cost of processing an alternative depends only on its
+// own size and not on how many alternatives have been seen before it.
 public class Solver
 {
-    private final Multiset<Integer> lengths = HashMultiset.create();
-    private final List<List<Integer>> alternatives = new ArrayList<>();
+    private final static int VALUES = 256; // The number of distinct values at each position.
+
+    // The most recent alternatives are kept so the votes can be rebuilt
+    // if the most likely length changes.
+    private final static int MAX_HISTORY = 32;
+
+    // The maximum number of candidates that a single walk will try and the number
+    // of best solutions that it keeps.
+    private final static int MAX_STEPS = 4096;
+    private final static int TOP_K = 3;
+
+    // The number of steps between checks to see if the current walk has been superseded.
+    private final static int SUPERSEDED_CHECK_INTERVAL = 256;
+
+    private final static DecoderMetrics metrics = DecoderMetrics.getInstance();
+
+    public enum Status { UNIQUE, AMBIGUOUS, UNDETERMINED }
+
+    private final int[] lengthCounts = new int[LengthDecoder.MAX_SEQUENCE_LEN + 1];
+    private final int[][] history = new int[MAX_HISTORY][];
+    private final int[] historySizes = new int[MAX_HISTORY];
+    private int historyCount = 0;
+    private int historyNext = 0;
+
+    // votes[(position * VALUES) + value] is the number of times value has been placed at position.
+    private int[] votes = new int[0];
+    private int[] candidateCounts = new int[0]; // The number of distinct values voted for at each position.
+    private int filledPositions = 0;
+    private int nibbleCount = -1; // The nibble count that the votes were placed for.
+
+    // masks[(position * 16) + highNibble] has a bit set for each low nibble that
+    // has been voted for at the given position with the given high nibble.
+    private int[] masks = new int[0];
+
+    // State for walk(), sized for the largest nibble count seen so far.
+    private int[] result = new int[0];
+    private int[] remaining = new int[0]; // The candidates that have yet to be tried at each depth.
+    private int[] scores = new int[0]; // The total votes along the current path at each depth.
+    private final int[] topScores = new int[TOP_K];
+    private int[] topResults = new int[0];
+    private int foundCount = 0;
+    private boolean searchComplete = false;
+
+    // Set, possibly by another thread, if the current walk should be abandoned.
+    private volatile boolean superseded = false;
+
     private final String name;
     private boolean solved = false;
-    
+    private String value = null;
+    private List<String> alternatives = Collections.emptyList();
+
     public Solver(String name) { this.name = name; }
 
+    public String getName() { return name; }
+
     public boolean isSolved() { return solved; }
 
+    public String getValue() { return value; }
+
+    // The best solutions found, in descending order of evidence, the first is the value.
+    public List<String> getAlternatives() { return alternatives; }
+
+    // The status of the most recent search. Note: if the search was cut short then a solution
+    // is never reported as unique as there may be other solutions that weren't found.
+    public Status getStatus()
+    {
+        if (foundCount == 0)
+        {
+            return Status.UNDETERMINED;
+        }
+
+        return (foundCount == 1 && searchComplete) ? Status.UNIQUE : Status.AMBIGUOUS;
+    }
+
+    // The approximate number of bytes used by the arrays, which are sized for the largest nibble count seen.
+    public int getMemoryUsage()
+    {
+        int ints = lengthCounts.length + historySizes.length + topScores.length + votes.length +
+            candidateCounts.length + masks.length + result.length + remaining.length + scores.length +
+            topResults.length;
+
+        for (int[] data : history)
+        {
+            ints += (data != null) ? data.length : 0;
+        }
+
+        return ints * 4;
+    }
+
+    // Discards all evidence seen so far so that the solver can be used for a new session.
+    public void reset()
+    {
+        Arrays.fill(lengthCounts, 0);
+        historyCount = 0;
+        historyNext = 0;
+        nibbleCount = -1;
+        foundCount = 0;
+        solved = false;
+        value = null;
+        alternatives = Collections.emptyList();
+    }
+
     public void process(EncodedData encodedData)
     {
         if (solved) return;
-        
-        lengths.addAll(encodedData.getLengths());
-        alternatives.add(encodedData.getData());
-        
-        place();
+
+        long start = System.nanoTime();
+
+        add(encodedData);
+        search();
+        metrics.solverInvoked(System.nanoTime() - start);
     }
-    
-    private void place()
+
+    // Places the votes for the encoded data but doesn't search for a solution. So the
+    // cost of the search can be paid once for a number of alternatives, see AsyncSolver.
+    public void add(EncodedData encodedData)
     {
-        int nibbleCount = getNibbleCount();
-        
-        if (nibbleCount == 0)
+        if (solved) return;
+
+        for (int i = 0; i < encodedData.getLengthCount(); i++)
+        {
+            lengthCounts[encodedData.getLength(i)]++;
+        }
+
+        int[] data = addToHistory(encodedData);
+        int dataCount = encodedData.getDataCount();
+        int newNibbleCount = getNibbleCount();
+
+        if (newNibbleCount == 0)
         {
-            solved(Collections.<Integer>emptyList());
+            foundCount = 1;
+            searchComplete = true;
+            nibbleCount = 0;
+            solved();
             return;
         }
-        
-        Set<Integer>[] sequence = createSequence(nibbleCount);
-        
-        for (List<Integer> data : alternatives)
+
+        if (newNibbleCount != nibbleCount)
         {
-            place(nibbleCount, sequence, data);
+            rebuild(newNibbleCount);
         }
-        
-        boolean hasHoles = false;
-        
-        for (Set<Integer> element : sequence)
+        else
         {
-            if (element.isEmpty())
+            place(data, dataCount);
+        }
+    }
+
+    // Searches for a solution if every position has at least one vote.
+    public void search()
+    {
+        superseded = false;
+
+        if (!solved && nibbleCount > 0 && filledPositions == nibbleCount)
+        {
+            walk();
+        }
+    }
+
+    // Can be called from any thread, a search in progress is abandoned without finding a solution.
+    public void supersede()
+    {
+        superseded = true;
+    }
+
+    // Writes the evidence, i.e. the length counts and the alternatives still in the history, along with
+    // the solution if there is one. The votes aren't written as they can be rebuilt from the history.
+    public void write(DataOutput out) throws IOException
+    {
+        for (int count : lengthCounts)
+        {
+            Varints.writeUnsigned(out, count);
+        }
+
+        Varints.writeUnsigned(out, historyCount);
+
+        for (int i = 0; i < historyCount; i++)
+        {
+            int slot = (historyNext - historyCount + i + MAX_HISTORY) % MAX_HISTORY;
+
+            Varints.writeUnsigned(out, historySizes[slot]);
+
+            for (int j = 0; j < historySizes[slot]; j++)
             {
-                hasHoles = true;
-                break;
+                out.writeByte(history[slot][j]);
             }
         }
-        
-        if (!hasHoles)
+
+        out.writeBoolean(solved);
+
+        if (solved)
         {
-            LinkedList<Integer> result = new LinkedList<>();
-            
-            walk(sequence, result);
+            Varints.writeUnsigned(out, alternatives.size());
+
+            for (String alternative : alternatives)
+            {
+                out.writeUTF(alternative);
+            }
+        }
+    }
+
+    // Replaces the current evidence with that written by write(...).
+    public void read(DataInput in) throws IOException
+    {
+        reset();
+
+        for (int i = 0; i < lengthCounts.length; i++)
+        {
+            lengthCounts[i] = Varints.readCount(in);
+        }
+
+        int count = Varints.readCount(in);
+        EncodedData encodedData = new EncodedData(LengthDecoder.MAX_SEQUENCE_LEN * 2);
+
+        for (int i = 0; i < count; i++)
+        {
+            int dataCount = Varints.readCount(in);
+
+            encodedData.clear();
+
+            for (int j = 0; j < dataCount; j++)
+            {
+                encodedData.addData(in.readUnsignedByte());
+            }
+
+            addToHistory(encodedData);
+        }
+
+        if (in.readBoolean())
+        {
+            int alternativeCount = Varints.readCount(in);
+            List<String> values = new ArrayList<>(alternativeCount);
+
+            for (int i = 0; i < alternativeCount; i++)
+            {
+                values.add(in.readUTF());
+            }
+
+            if (values.isEmpty())
+            {
+                throw new IOException("solved " + name + " has no alternatives");
+            }
+
+            alternatives = values;
+            value = values.get(0);
+            solved = true;
+        }
+        else if (getNibbleCount() > 0)
+        {
+            rebuild(getNibbleCount());
         }
     }
 
-    private void place(int nibbleCount, Set<Integer>[] sequence, List<Integer> data)
+    // The encoded data's arrays are reused so its values must be copied.
+    private int[] addToHistory(EncodedData encodedData)
     {
-        if (data.isEmpty())
+        int dataCount = encodedData.getDataCount();
+        int[] data = history[historyNext];
+
+        if (data == null || data.length < dataCount)
+        {
+            data = new int[Math.max(dataCount, LengthDecoder.MAX_SEQUENCE_LEN * 2)];
+            history[historyNext] = data;
+        }
+
+        for (int i = 0; i < dataCount; i++)
+        {
+            data[i] = encodedData.getData(i);
+        }
+
+        historySizes[historyNext] = dataCount;
+        historyNext = (historyNext + 1) % MAX_HISTORY;
+        historyCount = Math.min(historyCount + 1, MAX_HISTORY);
+
+        return data;
+    }
+
+    // Where the data values get placed depends on the nibble count so if it changes
+    // the votes have to be recalculated from the alternatives that we still have.
+    private void rebuild(int newNibbleCount)
+    {
+        nibbleCount = newNibbleCount;
+
+        if (votes.length < nibbleCount * VALUES)
+        {
+            votes = new int[nibbleCount * VALUES];
+            masks = new int[nibbleCount * 16];
+            candidateCounts = new int[nibbleCount];
+            result = new int[nibbleCount];
+            remaining = new int[nibbleCount];
+            scores = new int[nibbleCount];
+            topResults = new int[nibbleCount * TOP_K];
+        }
+        else
+        {
+            Arrays.fill(votes, 0);
+            Arrays.fill(masks, 0);
+            Arrays.fill(candidateCounts, 0);
+        }
+
+        filledPositions = 0;
+
+        for (int i = 0; i < historyCount; i++)
+        {
+            int slot = (historyNext - historyCount + i + MAX_HISTORY) % MAX_HISTORY;
+
+            place(history[slot], historySizes[slot]);
+        }
+    }
+
+    private void place(int[] data, int dataCount)
+    {
+        if (dataCount == 0)
         {
             return;
         }
-        
-        placeFirst(sequence, data.get(0), data.size() > 1 ? data.get(1) : -1);
-        placeRemainder(nibbleCount, sequence, data);
+
+        placeFirst(data[0], dataCount > 1 ? data[1] : -1);
+        placeRemainder(data, dataCount);
     }
 
-    private void placeFirst(Set<Integer>[] sequence, int first, int second)
+    private void placeFirst(int first, int second)
     {
         if ((first & 0xF0) == 0)
         {
-            sequence[0].add(first);
+            vote(0, first);
         }
         else if (second != -1)
         {
             // Get the index of the *next* element, then subtract 1 to get our index.
             int index = getIndex(1, second, first);
-            
+
             if (index > 0)
             {
-                add(sequence, index - 1, first);
+                vote(index - 1, first);
             }
         }
     }
-    
-    private void placeRemainder(int nibbleCount, Set<Integer>[] sequence, List<Integer> data)
+
+    private void placeRemainder(int[] data, int dataCount)
     {
-        Iterator<Integer> i = data.iterator();
-        int previous = i.next();
-        float factor = nibbleCount / (float)data.size();
-        int pos = 1;
-        
-        while (i.hasNext())
+        int previous = data[0];
+        float factor = nibbleCount / (float)dataCount;
+
+        for (int pos = 1; pos < dataCount; pos++)
         {
-            int current = i.next();
-            int expectedIndex = Math.round(pos++ * factor);
-            
-                int index = getIndex(expectedIndex, current, previous);
-                
-                add(sequence, index, current);
-            
-                previous = current;
+            int current = data[pos];
+            int expectedIndex = Math.round(pos * factor);
+            int index = getIndex(expectedIndex, current, previous);
+
+            vote(index, current);
+
+            previous = current;
         }
     }
-    
-    private void add(Set<Integer>[] sequence, int index, int value)
+
+    private void vote(int index, int value)
     {
-        if (index >= 0 && index < sequence.length)
+        if (index >= 0 && index < nibbleCount)
         {
-            sequence[index].add(value);
+            if (votes[(index * VALUES) + value]++ == 0)
+            {
+                masks[(index * 16) + (value >> 4)] |= 1 << (value & 0x0F);
+                
+                if (candidateCounts[index]++ == 0)
+                {
+                    filledPositions++;
+                }
+            }
         }
     }
 
@@ -146,10 +406,10 @@ public class Solver
     {
         int previousNibble = 0x0F & previous;
         int currentIndex = 0xF0 & current;
-        
+
         currentIndex >>= 4;
         currentIndex ^= previousNibble;
-        
+
         while (expectedIndex - currentIndex > 8)
         {
             currentIndex += 16;
@@ -157,140 +417,186 @@ public class Solver
 
         return currentIndex;
     }
-    
-    private void walk(Set<Integer>[] sequence, LinkedList<Integer> result)
+
+    // An iterative depth first search over the candidates at each position. Candidates are
+    // held as bitmasks and tried in order of the number of votes they've received, so the
+    // best supported solutions tend to be found first. The number of steps is capped so that
+    // noisy data, with many candidates at each position, can't cause a combinatorial blow up.
+    private void walk()
     {
-        if (result.size() == sequence.length)
+        int depth = 0;
+        int steps = 0;
+        
+        foundCount = 0;
+        remaining[0] = candidates(0);
+        
+        while (depth >= 0)
         {
-            // Note: there may be multiple valid solutions so we don't stop on finding the first one.
-            solved(result);
-            return;
+            if (remaining[depth] == 0)
+            {
+                depth--;
+                continue;
+            }
+            
+            if (++steps > MAX_STEPS)
+            {
+                searchComplete = false;
+                break;
+            }
+
+            if (steps % SUPERSEDED_CHECK_INTERVAL == 0 && superseded)
+            {
+                foundCount = 0;
+                searchComplete = false;
+                metrics.solveSuperseded();
+                return;
+            }
+            
+            int lowNibble = takeBest(depth);
+            int candidate = (highNibble(depth) << 4) | lowNibble;
+            int candidateVotes = votes[(depth * VALUES) + candidate];
+            
+            result[depth] = candidate;
+            scores[depth] = (depth > 0 ? scores[depth - 1] : 0) + candidateVotes;
+            
+            if (depth == nibbleCount - 1)
+            {
+                record(scores[depth]);
+            }
+            else
+            {
+                depth++;
+                remaining[depth] = candidates(depth);
+            }
         }
         
-        int index = result.size();
-        Set<Integer> candidates = sequence[index];
-        
-        if (index > 0)
+        if (depth < 0)
         {
-            candidates = prune(index, candidates, result.getLast());
+            searchComplete = true;
         }
         
-        for (int candidate : candidates)
+        // Wait for more evidence if the best solutions are equally well supported or if the only solution
+        // found came from a walk that was cut short, i.e. there may be others that are as well supported.
+        if ((foundCount == 1 && searchComplete) || (foundCount > 1 && topScores[0] > topScores[1]))
         {
-            result.addLast(candidate);
-            
-            walk(sequence, result);
-            
-            result.removeLast();
+            solved();
         }
     }
     
-    private Set<Integer> prune(int index, Set<Integer> candidates, Integer previous)
+    // The value at the previous position fixes the high nibble of the value at a given
+    // position. For the first position, where there is no previous value, it's zero.
+    private int highNibble(int index)
     {
-        index %= 16;
-        
-        int highNibble = (0x0F & previous) ^ index;
-        
-        highNibble <<= 4;
-        
-        Set<Integer> result = new HashSet<>();
+        return (index > 0) ? (0x0F & result[index - 1]) ^ (index % 16) : 0;
+    }
+    
+    // Returns a bitmask of the low nibbles of the candidates for the given position.
+    private int candidates(int index)
+    {
+        return masks[(index * 16) + highNibble(index)];
+    }
+    
+    // Removes the most voted for remaining candidate at the given depth and returns its low nibble.
+    private int takeBest(int depth)
+    {
+        int base = (depth * VALUES) + (highNibble(depth) << 4);
+        int mask = remaining[depth];
+        int best = -1;
+        int bestVotes = -1;
         
-        for (int candidate : candidates)
+        while (mask != 0)
         {
-            if ((candidate & 0xF0) == highNibble)
+            int lowNibble = Integer.numberOfTrailingZeros(mask);
+            
+            mask &= mask - 1;
+            
+            if (votes[base + lowNibble] > bestVotes)
             {
-                result.add(candidate);
+                best = lowNibble;
+                bestVotes = votes[base + lowNibble];
             }
         }
         
-        return result;
+        remaining[depth] &= ~(1 << best);
+        
+        return best;
     }
     
-    private void solved(List<Integer> result)
-    {
-        System.err.print("Solved " + name + ": ");
-        print(result);
-        solved = true;
-    }
-
-    private void print(List<Integer> result)
+    // Keeps the TOP_K best scoring solutions in descending order of score.
+    private void record(int score)
     {
-        System.err.print('[');
+        foundCount++;
         
-        int count = result.size() / 2;
-        byte[] data = new byte[count];
-        Iterator<Integer> i = result.iterator();
+        int i = Math.min(foundCount, TOP_K) - 1;
         
-        for (int j = 0; j < count; j++)
+        if (i == TOP_K - 1 && foundCount > TOP_K && score <= topScores[i])
         {
-            int highNibble = i.next() & 0x0F;
-            int lowNibble = i.next() & 0x0F;
-            
-            data[j] = (byte)((highNibble << 4) | lowNibble);
+            return;
         }
         
-        // Experimentation shows that the Android and iOS Smart Config apps
-        // send data as UTF-8, while the TI Java applet library just uses the
-        // default character set of the platform that it's running on.
-        String s = new String(data, Charsets.UTF_8);
-
-        System.err.println(escape(s) + ']');
+        while (i > 0 && topScores[i - 1] < score)
+        {
+            topScores[i] = topScores[i - 1];
+            System.arraycopy(topResults, (i - 1) * nibbleCount, topResults, i * nibbleCount, nibbleCount);
+            i--;
+        }
+        
+        topScores[i] = score;
+        System.arraycopy(result, 0, topResults, i * nibbleCount, nibbleCount);
     }
-    
-    // Replaces any characters that are not printable ISO 8859-1 characters with a Unicode escape.
-    private String escape(String s)
+
+    private void solved()
     {
-        StringBuilder builder = new StringBuilder();
-        char[] chars = s.toCharArray();
+        int count = Math.min(foundCount, TOP_K);
+        List<String> values = new ArrayList<>(count);
         
-        for (char c : chars)
+        for (int i = 0; i < count; i++)
         {
-            if ((c >= ' ' && c <= '~') || (c >= '\u00A1' && c <= '\u00FF'))
-            {
-                builder.append(c);
-            }
-            else
-            {
-                builder.append(String.format("\\u%04X", (int)c));
-            }
+            values.add(decode(topResults, i * nibbleCount, nibbleCount));
         }
         
-        return builder.toString();
+        alternatives = values;
+        value = values.get(0);
+        solved = true;
+
+        if (getStatus() == Status.AMBIGUOUS)
+        {
+            metrics.solvedAmbiguously();
+        }
     }
 
-    private Set<Integer>[] createSequence(int count)
+    private String decode(int[] nibbles, int start, int count)
     {
-        @SuppressWarnings("unchecked")
-        Set<Integer>[] result = new Set[count];
-        
-        for (int i = 0; i < result.length; i++)
+        byte[] data = new byte[count / 2];
+
+        for (int j = 0; j < data.length; j++)
         {
-            result[i] = new HashSet<Integer>();
+            int highNibble = nibbles[start + (j * 2)] & 0x0F;
+            int lowNibble = nibbles[start + (j * 2) + 1] & 0x0F;
+
+            data[j] = (byte)((highNibble << 4) | lowNibble);
         }
-        
-        return result;
+
+        // Experimentation shows that the Android and iOS Smart Config apps
+        // send data as UTF-8, while the TI Java applet library just uses the
+        // default character set of the platform that it's running on.
+        return new String(data, Charsets.UTF_8);
     }
 
-    // If we've got multiple potential length values we sort them by frequency
-    // and chose the most frequently seen value, if there's a tie we arbitrarily
-    // choose the shortest value.
+    // If we've got multiple potential length values we chose the most frequently
+    // seen value, if there's a tie we arbitrarily choose the shortest value.
     private int getNibbleCount()
     {
-        Iterator<Multiset.Entry<Integer>> i = Multisets.copyHighestCountFirst(lengths).entrySet().iterator();
-        Multiset.Entry<Integer> entry = i.next();
-        int minLength = entry.getElement();
-        int count = entry.getCount();
+        int length = 0;
 
-        while (i.hasNext())
+        for (int i = 1; i < lengthCounts.length; i++)
         {
-            entry = i.next();
-            if (entry.getCount() < count)
+            if (lengthCounts[i] > lengthCounts[length])
             {
-                break;
+                length = i;
             }
-            minLength = Math.min(minLength, entry.getElement());
         }
-        
-        return minLength * 2;
+
+        return length * 2;
     }
 }
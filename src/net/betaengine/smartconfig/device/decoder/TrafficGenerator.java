@@ -0,0 +1,337 @@
+/**
+ * Copyright 2013 George C. Hawkins
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.betaengine.smartconfig.device.decoder;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+
+import com.google.common.base.Charsets;
+
+// Generates synthetic Smart Config traffic, in the length encoding that LengthDecoder expects,
+// interleaved with background noise so that the decoder can be load tested without a live capture.
+// Each session is a sender broadcasting an SSID and keyphrase, on its own link, for a number of
+// rounds. Each round consists of:
+//
+//     SEPARATOR_START, SEPARATOR_END, SSID_TAG, LEN_MIN + ssid length, ssid data values...
+//     SEPARATOR_START, SEPARATOR_END, KEYPHRASE_TAG, LEN_MIN + keyphrase length, keyphrase data values...
+//
+// Where each data value is DATA_MIN plus a nibble of the value combined, as a high nibble,
+// with the position of the nibble and the previous nibble (see Solver). Every length then has
+// the encryption offset of the session's BSS added to it. The output is determined entirely by
+// the settings and the seed so the same traffic can be reproduced anywhere.
+public class TrafficGenerator
+{
+    private final static int[] FREQUENCIES = { 2412, 2437, 2462, 5180, 5240 };
+    private final static long BROADCAST = 0xFFFFFFFFFFFFL;
+
+    private final static int NOISE_MIN_LENGTH = 20;
+    private final static int NOISE_MAX_LENGTH = 1500;
+
+    // The time between frames in the binary output, as for PcapFrameWriter.
+    private final static long FRAME_INTERVAL_MICROS = 100;
+
+    private final Random random;
+
+    private int sessionCount = 1;
+    private int bssCount = 1;
+    private int noiseLinkCount = 100;
+    private int rounds = 5;
+    private double noise = 1; // The number of noise frames per Smart Config frame.
+    private double loss = 0;
+    private double reorder = 0;
+    private int[] offsets = { 36 };
+    private String ssid = "SmartConfig";
+    private String keyphrase = "password";
+
+    private long frameCount = 0;
+
+    public TrafficGenerator(long seed)
+    {
+        random = new Random(seed);
+    }
+
+    public void setSessionCount(int sessionCount) { this.sessionCount = sessionCount; }
+
+    public void setBssCount(int bssCount) { this.bssCount = bssCount; }
+
+    public void setNoiseLinkCount(int noiseLinkCount) { this.noiseLinkCount = noiseLinkCount; }
+
+    public void setRounds(int rounds) { this.rounds = rounds; }
+
+    public void setNoise(double noise) { this.noise = noise; }
+
+    public void setLoss(double loss) { this.loss = loss; }
+
+    public void setReorder(double reorder) { this.reorder = reorder; }
+
+    // The encryption offsets, BSSes are assigned offsets from this list in turn.
+    public void setOffsets(int... offsets) { this.offsets = offsets; }
+
+    // If there's more than one session then each session appends its number to these values.
+    public void setSsid(String ssid) { this.ssid = ssid; }
+
+    public void setKeyphrase(String keyphrase) { this.keyphrase = keyphrase; }
+
+    public long getFrameCount() { return frameCount; }
+
+    public static void main(String[] args)
+    {
+        TrafficGenerator generator = null;
+        boolean pcap = false;
+        boolean binary = false;
+
+        try
+        {
+            long seed = 0;
+
+            for (int i = 0; i < args.length; i++)
+            {
+                if (args[i].equals("--seed") && i + 1 < args.length)
+                {
+                    seed = Long.parseLong(args[++i]);
+                }
+            }
+
+            generator = new TrafficGenerator(seed);
+
+            for (int i = 0; i < args.length; i++)
+            {
+                String arg = args[i];
+
+                if (arg.equals("--pcap"))
+                {
+                    pcap = true;
+                    continue;
+                }
+
+                if (arg.equals("--binary"))
+                {
+                    binary = true;
+                    continue;
+                }
+
+                if (i + 1 == args.length)
+                {
+                    usage();
+                }
+
+                String value = args[++i];
+
+                switch (arg)
+                {
+                case "--seed": break;
+                case "--sessions": generator.setSessionCount(Integer.parseInt(value)); break;
+                case "--bss": generator.setBssCount(Integer.parseInt(value)); break;
+                case "--noise-links": generator.setNoiseLinkCount(Integer.parseInt(value)); break;
+                case "--rounds": generator.setRounds(Integer.parseInt(value)); break;
+                case "--noise": generator.setNoise(Double.parseDouble(value)); break;
+                case "--loss": generator.setLoss(Double.parseDouble(value)); break;
+                case "--reorder": generator.setReorder(Double.parseDouble(value)); break;
+                case "--offsets": generator.setOffsets(parseInts(value)); break;
+                case "--ssid": generator.setSsid(value); break;
+                case "--keyphrase": generator.setKeyphrase(value); break;
+                default: usage();
+                }
+            }
+
+            if (pcap && binary)
+            {
+                usage();
+            }
+        }
+        catch (NumberFormatException e)
+        {
+            usage();
+        }
+
+        try
+        {
+            OutputStream output = new BufferedOutputStream(System.out);
+            FrameWriter writer = pcap ? new PcapFrameWriter(output) :
+                (binary ? new BinaryFrameWriter(output, FRAME_INTERVAL_MICROS) : new TsvFrameWriter(output));
+
+            generator.generate(writer);
+            writer.flush();
+
+            System.err.println("Generated " + generator.getFrameCount() + " frames");
+        }
+        catch (IOException e)
+        {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    private static void usage()
+    {
+        System.err.println("Usage: java " + TrafficGenerator.class.getName() +
+            " [--seed n] [--sessions n] [--bss n] [--noise-links n] [--rounds n]" +
+            " [--noise frames-per-frame] [--loss rate] [--reorder rate] [--offsets n,n...]" +
+            " [--ssid s] [--keyphrase s] [--pcap | --binary]");
+        System.exit(1);
+    }
+
+    private static int[] parseInts(String s)
+    {
+        String[] values = s.split(",");
+        int[] result = new int[values.length];
+
+        for (int i = 0; i < values.length; i++)
+        {
+            result[i] = Integer.parseInt(values[i].trim());
+        }
+
+        return result;
+    }
+
+    public void generate(FrameWriter writer) throws IOException
+    {
+        Session[] sessions = new Session[sessionCount];
+
+        for (int i = 0; i < sessionCount; i++)
+        {
+            String suffix = (sessionCount > 1) ? "-" + i : "";
+
+            sessions[i] = new Session(i, i % bssCount, encode(ssid + suffix, keyphrase + suffix));
+        }
+
+        // Sessions are interleaved by picking a random unfinished session for each frame.
+        int activeCount = sessionCount;
+        double noiseProbability = noise / (1 + noise);
+
+        while (activeCount > 0)
+        {
+            if (noiseLinkCount > 0 && random.nextDouble() < noiseProbability)
+            {
+                writeNoise(writer);
+                continue;
+            }
+
+            int index = random.nextInt(activeCount);
+            Session session = sessions[index];
+
+            session.writeNext(writer);
+
+            if (session.isFinished())
+            {
+                sessions[index] = sessions[--activeCount];
+                sessions[activeCount] = session;
+            }
+        }
+    }
+
+    private void writeNoise(FrameWriter writer) throws IOException
+    {
+        int link = random.nextInt(noiseLinkCount);
+        int bss = link % bssCount;
+        int length = NOISE_MIN_LENGTH + random.nextInt(NOISE_MAX_LENGTH - NOISE_MIN_LENGTH + 1);
+
+        write(writer, bss, 0x040000000000L | link, 0x0A0000000000L | (link * 7919 % 1024), length);
+    }
+
+    private void write(FrameWriter writer, int bss, long source, long destination, int length) throws IOException
+    {
+        writer.write(0x020000000000L | bss, FREQUENCIES[bss % FREQUENCIES.length], source, destination, length);
+        frameCount++;
+    }
+
+    // Returns the sizes, i.e. the lengths before any encryption offset is added, of one round.
+    static int[] encode(String ssidValue, String keyphraseValue)
+    {
+        byte[] ssidBytes = ssidValue.getBytes(Charsets.UTF_8);
+        byte[] keyphraseBytes = keyphraseValue.getBytes(Charsets.UTF_8);
+
+        if (ssidBytes.length > LengthDecoder.MAX_SEQUENCE_LEN || keyphraseBytes.length > LengthDecoder.MAX_SEQUENCE_LEN)
+        {
+            throw new IllegalArgumentException("values can be at most " + LengthDecoder.MAX_SEQUENCE_LEN + " bytes");
+        }
+
+        int[] result = new int[8 + (ssidBytes.length * 2) + (keyphraseBytes.length * 2)];
+        int position = encode(result, 0, LengthDecoder.SSID_TAG, ssidBytes);
+
+        encode(result, position, LengthDecoder.KEYPHRASE_TAG, keyphraseBytes);
+
+        return result;
+    }
+
+    private static int encode(int[] result, int position, int tag, byte[] value)
+    {
+        result[position++] = LengthDecoder.SEPARATOR_START;
+        result[position++] = LengthDecoder.SEPARATOR_END;
+        result[position++] = tag;
+        result[position++] = LengthDecoder.LEN_MIN + value.length;
+
+        int previous = 0;
+
+        for (int i = 0; i < value.length * 2; i++)
+        {
+            int b = value[i / 2] & 0xFF;
+            int nibble = (i % 2 == 0) ? b >>> 4 : b & 0x0F;
+            int highNibble = previous ^ (i % 16);
+
+            result[position++] = LengthDecoder.DATA_MIN + ((highNibble << 4) | nibble);
+            previous = nibble;
+        }
+
+        return position;
+    }
+
+    private class Session
+    {
+        private final int bss;
+        private final long source;
+        private final int offset;
+        private final int[] round;
+        private int position = 0;
+
+        public Session(int index, int bss, int[] round)
+        {
+            this.bss = bss;
+            this.source = 0x060000000000L | index;
+            this.offset = offsets[bss % offsets.length];
+            this.round = round;
+        }
+
+        public boolean isFinished() { return position == round.length * rounds; }
+
+        public void writeNext(FrameWriter writer) throws IOException
+        {
+            int size = round[position % round.length];
+
+            // Occasionally swap this frame with the next one.
+            if (position + 1 < round.length * rounds && random.nextDouble() < reorder)
+            {
+                int next = round[(position + 1) % round.length];
+
+                write(writer, next);
+                position++;
+            }
+
+            write(writer, size);
+            position++;
+        }
+
+        private void write(FrameWriter writer, int size) throws IOException
+        {
+            if (random.nextDouble() >= loss)
+            {
+                TrafficGenerator.this.write(writer, bss, source, BROADCAST, size + offset);
+            }
+        }
+    }
+}
@@ -0,0 +1,254 @@
+/**
+ * Copyright 2013 George C. Hawkins
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.betaengine.smartconfig.device.decoder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+// Reads the tab separated output of tshark, i.e. lines of the form:
+//
+//     wlan.bssid <TAB> radiotap.channel.freq <TAB> wlan.sa <TAB> wlan.da <TAB> data.len
+//
+// The fields are located and parsed in place in a reused direct buffer so that
+// no objects are created per line. Lines whose source or destination isn't a MAC address, or
+// whose length isn't a non-negative decimal number, are rejected (see the README).
+public class TsvFrameReader implements FrameReader
+{
+    private final static int BUFFER_SIZE = 64 * 1024;
+
+    private final static int FIELD_COUNT = 5;
+
+    private final static int BSSID = 0;
+    private final static int FREQUENCY = 1;
+    private final static int SOURCE = 2;
+    private final static int DESTINATION = 3;
+    private final static int LENGTH = 4;
+
+    private final static int MAX_LENGTH_DIGITS = 9; // Anything longer could overflow an int.
+
+    private final static DecoderMetrics metrics = DecoderMetrics.getInstance();
+
+    private final ReadableByteChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private final int[] fieldStarts = new int[FIELD_COUNT];
+    private final int[] fieldEnds = new int[FIELD_COUNT];
+
+    // Set when a line is too long to fit in the buffer, such a line can't be a valid frame.
+    private boolean discarding = false;
+
+    // Counts are kept locally and only added to the shared metrics once per buffer.
+    private long parsedCount = 0;
+    private long rejectedCount = 0;
+
+    public TsvFrameReader(ReadableByteChannel channel)
+    {
+        this.channel = channel;
+    }
+
+    @Override
+    public boolean read(FrameHandler handler) throws IOException
+    {
+        buffer.clear();
+
+        while (channel.read(buffer) != -1)
+        {
+            buffer.flip();
+
+            boolean done = handleLines(handler);
+
+            publishCounts();
+
+            if (done)
+            {
+                return true;
+            }
+
+            buffer.compact();
+
+            if (!buffer.hasRemaining())
+            {
+                buffer.clear();
+                discarding = true;
+                rejectedCount++;
+            }
+        }
+
+        // Handle any final line that isn't terminated by a newline.
+        buffer.flip();
+
+        boolean done = buffer.hasRemaining() && !discarding && handleLine(handler, buffer.position(), buffer.limit());
+
+        publishCounts();
+
+        return done;
+    }
+
+    private void publishCounts()
+    {
+        metrics.framesParsed(parsedCount);
+        metrics.framesRejected(rejectedCount);
+        parsedCount = 0;
+        rejectedCount = 0;
+    }
+
+    // Consumes all complete lines in the buffer, leaving any partial line in place.
+    private boolean handleLines(FrameHandler handler)
+    {
+        int start = buffer.position();
+        int limit = buffer.limit();
+
+        for (int i = start; i < limit; i++)
+        {
+            byte b = buffer.get(i);
+
+            // Like BufferedReader.readLine() we accept "\n", "\r" or "\r\n" as line terminators.
+            if (b == '\n' || b == '\r')
+            {
+                boolean done = !discarding && handleLine(handler, start, i);
+
+                discarding = false;
+                start = i + 1;
+                buffer.position(start);
+
+                if (done)
+                {
+                    return true;
+                }
+            }
+        }
+
+        return false;
+    }
+
+    private boolean handleLine(FrameHandler handler, int start, int end)
+    {
+        // String.split(...) discards trailing empty fields, we do the same.
+        while (end > start && buffer.get(end - 1) == '\t')
+        {
+            end--;
+        }
+
+        if (!findFields(start, end))
+        {
+            // Blank lines, e.g. the second half of a "\r\n", aren't counted as rejected frames.
+            rejectedCount += (end > start) ? 1 : 0;
+            return false;
+        }
+
+        long source = MacAddresses.parse(buffer, fieldStarts[SOURCE], fieldEnds[SOURCE]);
+        long destination = MacAddresses.parse(buffer, fieldStarts[DESTINATION], fieldEnds[DESTINATION]);
+
+        if (source == MacAddresses.INVALID || destination == MacAddresses.INVALID)
+        {
+            rejectedCount++;
+            return false;
+        }
+
+        int length = parseLength(fieldStarts[LENGTH], fieldEnds[LENGTH]);
+
+        if (length < 0)
+        {
+            rejectedCount++;
+            return false;
+        }
+
+        // The BSSID and frequency only partition the analysis so, unlike the fields above,
+        // a frame isn't rejected if they're unusable, they're just treated as unknown.
+        long bssid = MacAddresses.parse(buffer, fieldStarts[BSSID], fieldEnds[BSSID]);
+        int frequency = Math.max(parseUnsigned(fieldStarts[FREQUENCY], fieldEnds[FREQUENCY]), 0);
+
+        parsedCount++;
+
+        return handler.process(FrameHandler.NO_TIMESTAMP, bssid, frequency, source, destination, length);
+    }
+
+    // Returns false unless there are exactly FIELD_COUNT non-empty fields.
+    private boolean findFields(int start, int end)
+    {
+        int field = 0;
+
+        fieldStarts[0] = start;
+
+        for (int i = start; i < end; i++)
+        {
+            if (buffer.get(i) == '\t')
+            {
+                if (field == FIELD_COUNT - 1)
+                {
+                    return false;
+                }
+
+                fieldEnds[field++] = i;
+                fieldStarts[field] = i + 1;
+            }
+        }
+
+        if (field != FIELD_COUNT - 1)
+        {
+            return false;
+        }
+
+        fieldEnds[field] = end;
+
+        for (int i = 0; i < FIELD_COUNT; i++)
+        {
+            if (fieldStarts[i] == fieldEnds[i])
+            {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    // Like Integer.parseInt(...) a leading plus sign is allowed, returns -1 for anything that isn't a
+    // non-negative number.
+    private int parseLength(int start, int end)
+    {
+        if (buffer.get(start) == '+')
+        {
+            start++;
+        }
+
+        return (start < end) ? parseUnsigned(start, end) : -1;
+    }
+
+    // Returns -1 if the field isn't a plain unsigned decimal number that fits in an int.
+    private int parseUnsigned(int start, int end)
+    {
+        if (end - start > MAX_LENGTH_DIGITS)
+        {
+            return -1;
+        }
+
+        int result = 0;
+
+        for (int i = start; i < end; i++)
+        {
+            int digit = buffer.get(i) - '0';
+
+            if (digit < 0 || digit > 9)
+            {
+                return -1;
+            }
+
+            result = (result * 10) + digit;
+        }
+
+        return result;
+    }
+}
@@ -0,0 +1,114 @@
+/**
+ * Copyright 2013 George C. Hawkins
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.betaengine.smartconfig.device.decoder;
+
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+// Writes frames in the same tab separated form as tshark, see TsvFrameReader.
+public class TsvFrameWriter implements FrameWriter
+{
+    private final static int BUFFER_SIZE = 64 * 1024;
+    private final static int MAX_LINE_LENGTH = 128;
+    private final static int MAC_BYTES = 6;
+    private final static byte[] HEX_DIGITS = "0123456789abcdef".getBytes();
+
+    private final OutputStream output;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int position = 0;
+
+    public TsvFrameWriter(OutputStream output)
+    {
+        this.output = output;
+    }
+
+    @Override
+    public void write(long bssid, int frequency, long source, long destination, int length) throws IOException
+    {
+        if (position + MAX_LINE_LENGTH > buffer.length)
+        {
+            flushBuffer();
+        }
+
+        writeMac(bssid);
+        buffer[position++] = '\t';
+        writeInt(frequency);
+        buffer[position++] = '\t';
+        writeMac(source);
+        buffer[position++] = '\t';
+        writeMac(destination);
+        buffer[position++] = '\t';
+        writeInt(length);
+        buffer[position++] = '\n';
+    }
+
+    @Override
+    public void flush() throws IOException
+    {
+        flushBuffer();
+        output.flush();
+    }
+
+    private void flushBuffer() throws IOException
+    {
+        output.write(buffer, 0, position);
+        position = 0;
+    }
+
+    private void writeMac(long address)
+    {
+        for (int shift = (MAC_BYTES - 1) * 8; shift >= 0; shift -= 8)
+        {
+            int b = (int)(address >>> shift) & 0xFF;
+
+            buffer[position++] = HEX_DIGITS[b >>> 4];
+            buffer[position++] = HEX_DIGITS[b & 0x0F];
+
+            if (shift > 0)
+            {
+                buffer[position++] = ':';
+            }
+        }
+    }
+
+    private void writeInt(int value)
+    {
+        if (value < 0)
+        {
+            buffer[position++] = '-';
+            value = -value;
+        }
+
+        int start = position;
+
+        do
+        {
+            buffer[position++] = (byte)('0' + (value % 10));
+            value /= 10;
+        }
+        while (value != 0);
+
+        // The digits were written least significant first.
+        for (int i = start, j = position - 1; i < j; i++, j--)
+        {
+            byte b = buffer[i];
+
+            buffer[i] = buffer[j];
+            buffer[j] = b;
+        }
+    }
+}
@@ -0,0 +1,116 @@
+/**
+ * Copyright 2013 George C. Hawkins
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.betaengine.smartconfig.device.decoder;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+// Variable length encoding of integers, seven bits per byte with the high bit set on all but the last
+// byte, so small values take a single byte. Signed values are zigzag encoded first so that small
+// negative values are also small, e.g. -1 becomes 1 and 1 becomes 2.
+public class Varints
+{
+    private Varints() { }
+
+    public static void writeUnsigned(DataOutput out, long value) throws IOException
+    {
+        while ((value & ~0x7FL) != 0)
+        {
+            out.writeByte((int)((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+
+        out.writeByte((int)value);
+    }
+
+    public static long readUnsigned(DataInput in) throws IOException
+    {
+        long result = 0;
+
+        for (int shift = 0; shift < 64; shift += 7)
+        {
+            int b = in.readUnsignedByte();
+
+            result |= (long)(b & 0x7F) << shift;
+
+            if ((b & 0x80) == 0)
+            {
+                return result;
+            }
+        }
+
+        throw new IOException("malformed varint");
+    }
+
+    // The ByteBuffer variants are for the frame formats, where the data is already buffered.
+    public static void writeUnsigned(ByteBuffer buffer, long value)
+    {
+        while ((value & ~0x7FL) != 0)
+        {
+            buffer.put((byte)((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+
+        buffer.put((byte)value);
+    }
+
+    // Throws a BufferUnderflowException if the value is truncated.
+    public static long readUnsigned(ByteBuffer buffer) throws IOException
+    {
+        long result = 0;
+
+        for (int shift = 0; shift < 64; shift += 7)
+        {
+            int b = buffer.get() & 0xFF;
+
+            result |= (long)(b & 0x7F) << shift;
+
+            if ((b & 0x80) == 0)
+            {
+                return result;
+            }
+        }
+
+        throw new IOException("malformed varint");
+    }
+
+    public static void writeSigned(DataOutput out, long value) throws IOException
+    {
+        writeUnsigned(out, (value << 1) ^ (value >> 63));
+    }
+
+    public static long readSigned(DataInput in) throws IOException
+    {
+        long value = readUnsigned(in);
+
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    // Reads an unsigned value that must fit in an int, e.g. a count or a size.
+    public static int readCount(DataInput in) throws IOException
+    {
+        long value = readUnsigned(in);
+
+        if (value > Integer.MAX_VALUE)
+        {
+            throw new IOException("count out of range: " + value);
+        }
+
+        return (int)value;
+    }
+}